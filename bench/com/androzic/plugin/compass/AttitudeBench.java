@@ -0,0 +1,305 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.Random;
+
+/**
+ * Compares {@link Attitude} against plain Java port of the
+ * SensorManager.getRotationMatrix(), remapCoordinateSystem() and
+ * getOrientation() path it replaced, on the same synthetic samples and for
+ * all display rotations, runs on plain JVM. Pitch and roll must agree with
+ * getOrientation(), azimuth must agree with the elevation blended heading
+ * computed from the remapped matrix. Exits with non-zero status on mismatch.
+ * Timings are nanoseconds per sample with all three angles derived on every
+ * sample, best of several rounds.
+ *
+ * Usage: AttitudeBench [samples per round]
+ */
+public class AttitudeBench
+{
+	private static final int AXIS_X = 1;
+	private static final int AXIS_Y = 2;
+	private static final int AXIS_MINUS_X = AXIS_X | 0x80;
+	private static final int AXIS_MINUS_Y = AXIS_Y | 0x80;
+
+	/** Remap axes for Surface.ROTATION_0 .. ROTATION_270 */
+	private static final int[][] REMAP = { { AXIS_X, AXIS_Y }, { AXIS_Y, AXIS_MINUS_X }, { AXIS_MINUS_X, AXIS_MINUS_Y }, { AXIS_MINUS_Y, AXIS_X } };
+
+	private static final double MAX_ANGLE_ERROR = 0.01;
+	/** Roll is undefined when screen is upright, such samples are not compared */
+	private static final float MAX_ELEVATION = 0.95f;
+
+	private static final int SAMPLES = 4096;
+	private static final int ROUNDS = 6;
+
+	private static int failures;
+	// Keeps results alive so that loops are not eliminated
+	private static volatile float sink;
+
+	public static void main(String[] args)
+	{
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+		float[][] gravity = new float[SAMPLES][3];
+		float[][] geomagnetic = new float[SAMPLES][3];
+		generate(gravity, geomagnetic);
+
+		for (int rotation = 0; rotation < 4; rotation++)
+			compare(rotation, gravity, geomagnetic);
+		measureTimes(calls, gravity, geomagnetic);
+
+		if (failures > 0)
+		{
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Generates random device orientations with sensor noise. Field has 60
+	 * degrees inclination.
+	 */
+	private static void generate(float[][] gravity, float[][] geomagnetic)
+	{
+		Random random = new Random(1);
+		float[] r = new float[9];
+		for (int i = 0; i < SAMPLES; i++)
+		{
+			// Random unit quaternion gives uniformly distributed orientation
+			double w = random.nextGaussian(), x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+			double n = Math.sqrt(w * w + x * x + y * y + z * z);
+			w /= n;
+			x /= n;
+			y /= n;
+			z /= n;
+			// Device to world rotation, rows are east, north and up
+			r[0] = (float) (1 - 2 * (y * y + z * z));
+			r[1] = (float) (2 * (x * y - w * z));
+			r[2] = (float) (2 * (x * z + w * y));
+			r[3] = (float) (2 * (x * y + w * z));
+			r[4] = (float) (1 - 2 * (x * x + z * z));
+			r[5] = (float) (2 * (y * z - w * x));
+			r[6] = (float) (2 * (x * z - w * y));
+			r[7] = (float) (2 * (y * z + w * x));
+			r[8] = (float) (1 - 2 * (x * x + y * y));
+			// Device vector is transposed rotation applied to world vector
+			for (int k = 0; k < 3; k++)
+			{
+				gravity[i][k] = 9.81f * r[6 + k] + (float) random.nextGaussian() * 0.05f;
+				geomagnetic[i][k] = 25f * r[3 + k] - 43.3f * r[6 + k] + (float) random.nextGaussian() * 0.5f;
+			}
+		}
+	}
+
+	private static void compare(int rotation, float[][] gravity, float[][] geomagnetic)
+	{
+		Attitude attitude = new Attitude();
+		attitude.setDisplayRotation(rotation);
+		float[] r = new float[9];
+		float[] i = new float[9];
+		float[] remapped = new float[9];
+		float[] values = new float[3];
+
+		double azimuthError = 0, pitchError = 0, rollError = 0;
+		int compared = 0;
+		for (int k = 0; k < SAMPLES; k++)
+		{
+			if (!getRotationMatrix(r, i, gravity[k], geomagnetic[k]) || !remapCoordinateSystem(r, REMAP[rotation][0], REMAP[rotation][1], remapped))
+				continue;
+			if (!attitude.update(gravity[k][0], gravity[k][1], gravity[k][2], geomagnetic[k][0], geomagnetic[k][1], geomagnetic[k][2], k))
+				continue;
+			if (Math.abs(remapped[7]) > MAX_ELEVATION)
+				continue;
+			getOrientation(remapped, values);
+			double azimuth = Math.toDegrees(Math.atan2(remapped[1] - remapped[7] * remapped[2], remapped[4] - remapped[7] * remapped[5]));
+			azimuthError = Math.max(azimuthError, angleDifference(attitude.getAzimuth(), azimuth));
+			pitchError = Math.max(pitchError, angleDifference(attitude.getPitch(), Math.toDegrees(values[1])));
+			rollError = Math.max(rollError, angleDifference(attitude.getRoll(), Math.toDegrees(values[2])));
+			compared++;
+		}
+
+		System.out.println(String.format("rotation %3d: %d samples, max error: azimuth %.2e, pitch %.2e, roll %.2e deg", rotation * 90, compared, azimuthError, pitchError, rollError));
+		check("rotation " + rotation * 90 + " compared most samples", compared > SAMPLES / 2);
+		check("rotation " + rotation * 90 + " angles within " + MAX_ANGLE_ERROR + " deg", azimuthError < MAX_ANGLE_ERROR && pitchError < MAX_ANGLE_ERROR && rollError < MAX_ANGLE_ERROR);
+	}
+
+	private static void measureTimes(int calls, float[][] gravity, float[][] geomagnetic)
+	{
+		Attitude attitude = new Attitude();
+		attitude.setDisplayRotation(1);
+		float[] r = new float[9];
+		float[] i = new float[9];
+		float[] remapped = new float[9];
+		float[] values = new float[3];
+
+		// Best of rounds, first rounds include compilation
+		double best[] = { Double.MAX_VALUE, Double.MAX_VALUE };
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			float acc = 0;
+			long t0 = System.nanoTime();
+			for (int k = 0; k < calls; k++)
+			{
+				int j = k & (SAMPLES - 1);
+				if (getRotationMatrix(r, i, gravity[j], geomagnetic[j]) && remapCoordinateSystem(r, AXIS_Y, AXIS_MINUS_X, remapped))
+				{
+					getOrientation(remapped, values);
+					acc += (float) Math.toDegrees(values[0]) + (float) Math.toDegrees(values[1]) + (float) Math.toDegrees(values[2]);
+				}
+			}
+			long t1 = System.nanoTime();
+			for (int k = 0; k < calls; k++)
+			{
+				int j = k & (SAMPLES - 1);
+				float[] a = gravity[j];
+				float[] e = geomagnetic[j];
+				if (attitude.update(a[0], a[1], a[2], e[0], e[1], e[2], k))
+					acc += attitude.getAzimuth() + attitude.getPitch() + attitude.getRoll();
+			}
+			long t2 = System.nanoTime();
+			sink += acc;
+
+			best[0] = Math.min(best[0], (double) (t1 - t0) / calls);
+			best[1] = Math.min(best[1], (double) (t2 - t1) / calls);
+		}
+
+		System.out.println(String.format("%s %s, ns per sample", System.getProperty("java.vm.name"), System.getProperty("java.version")));
+		System.out.println(String.format("rotation matrix  %6.1f", best[0]));
+		System.out.println(String.format("attitude         %6.1f", best[1]));
+	}
+
+	private static double angleDifference(double a, double b)
+	{
+		double d = Math.abs(a - b) % 360;
+		return d > 180 ? 360 - d : d;
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		System.out.println((ok ? "PASS  " : "FAIL  ") + name);
+		if (!ok)
+			failures++;
+	}
+
+	// Port of android.hardware.SensorManager methods, 3x3 matrices only
+
+	private static boolean getRotationMatrix(float[] R, float[] I, float[] gravity, float[] geomagnetic)
+	{
+		float Ax = gravity[0];
+		float Ay = gravity[1];
+		float Az = gravity[2];
+		final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+		final float g = 9.81f;
+		final float freeFallGravitySquared = 0.01f * g * g;
+		if (normsqA < freeFallGravitySquared)
+			return false;
+		final float Ex = geomagnetic[0];
+		final float Ey = geomagnetic[1];
+		final float Ez = geomagnetic[2];
+		float Hx = Ey * Az - Ez * Ay;
+		float Hy = Ez * Ax - Ex * Az;
+		float Hz = Ex * Ay - Ey * Ax;
+		final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+		if (normH < 0.1f)
+			return false;
+		final float invH = 1.0f / normH;
+		Hx *= invH;
+		Hy *= invH;
+		Hz *= invH;
+		final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az * Az);
+		Ax *= invA;
+		Ay *= invA;
+		Az *= invA;
+		final float Mx = Ay * Hz - Az * Hy;
+		final float My = Az * Hx - Ax * Hz;
+		final float Mz = Ax * Hy - Ay * Hx;
+		R[0] = Hx;
+		R[1] = Hy;
+		R[2] = Hz;
+		R[3] = Mx;
+		R[4] = My;
+		R[5] = Mz;
+		R[6] = Ax;
+		R[7] = Ay;
+		R[8] = Az;
+		if (I != null)
+		{
+			final float invE = 1.0f / (float) Math.sqrt(Ex * Ex + Ey * Ey + Ez * Ez);
+			final float c = (Ex * Mx + Ey * My + Ez * Mz) * invE;
+			final float s = (Ex * Ax + Ey * Ay + Ez * Az) * invE;
+			I[0] = 1;
+			I[1] = 0;
+			I[2] = 0;
+			I[3] = 0;
+			I[4] = c;
+			I[5] = s;
+			I[6] = 0;
+			I[7] = -s;
+			I[8] = c;
+		}
+		return true;
+	}
+
+	private static boolean remapCoordinateSystem(float[] inR, int X, int Y, float[] outR)
+	{
+		if ((X & 0x7C) != 0 || (Y & 0x7C) != 0)
+			return false;
+		if (((X & 0x3) == 0) || ((Y & 0x3) == 0))
+			return false;
+		if ((X & 0x3) == (Y & 0x3))
+			return false;
+		int Z = X ^ Y;
+		final int x = (X & 0x3) - 1;
+		final int y = (Y & 0x3) - 1;
+		final int z = (Z & 0x3) - 1;
+		final int axis_y = (z + 1) % 3;
+		final int axis_z = (z + 2) % 3;
+		if (((x ^ axis_y) | (y ^ axis_z)) != 0)
+			Z ^= 0x80;
+		final boolean sx = (X >= 0x80);
+		final boolean sy = (Y >= 0x80);
+		final boolean sz = (Z >= 0x80);
+		for (int j = 0; j < 3; j++)
+		{
+			final int offset = j * 3;
+			for (int i = 0; i < 3; i++)
+			{
+				if (x == i)
+					outR[offset + i] = sx ? -inR[offset + 0] : inR[offset + 0];
+				if (y == i)
+					outR[offset + i] = sy ? -inR[offset + 1] : inR[offset + 1];
+				if (z == i)
+					outR[offset + i] = sz ? -inR[offset + 2] : inR[offset + 2];
+			}
+		}
+		return true;
+	}
+
+	private static float[] getOrientation(float[] R, float values[])
+	{
+		values[0] = (float) Math.atan2(R[1], R[4]);
+		values[1] = (float) Math.asin(-R[7]);
+		values[2] = (float) Math.atan2(-R[6], R[8]);
+		return values;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Benchmark of sample processing over replayed sensor bursts, runs on plain
+ * JVM. The same recorded sequence of interleaved accelerometer and
+ * magnetometer samples is fed unbatched (attitude per sample) and in bursts
+ * (attitude per burst). Also checks that both modes end with the same
+ * heading, exits with non-zero status otherwise.
+ *
+ * Usage: BatchBench [burst size] [bursts]
+ */
+public class BatchBench
+{
+	private static final int ROUNDS = 5;
+
+	private static float lastAzimuth;
+
+	public static void main(String[] args)
+	{
+		int burstSize = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int samples = burstSize * bursts;
+
+		// Slow turn with noise, 100 Hz per sensor
+		int[] sensor = new int[samples];
+		long[] time = new long[samples];
+		float[] x = new float[samples];
+		float[] y = new float[samples];
+		float[] z = new float[samples];
+		java.util.Random random = new java.util.Random(1);
+		for (int i = 0; i < samples; i++)
+		{
+			double heading = Math.toRadians(i * 0.01);
+			sensor[i] = i % 2 == 0 ? SensorSource.ACCELEROMETER : SensorSource.MAGNETIC;
+			time[i] = i * 5000000L;
+			if (sensor[i] == SensorSource.ACCELEROMETER)
+			{
+				x[i] = (float) (random.nextGaussian() * 0.05);
+				y[i] = (float) (random.nextGaussian() * 0.05);
+				z[i] = (float) (9.81 + random.nextGaussian() * 0.05);
+			}
+			else
+			{
+				x[i] = (float) (-20 * Math.sin(heading) + random.nextGaussian() * 0.3);
+				y[i] = (float) (20 * Math.cos(heading) + random.nextGaussian() * 0.3);
+				z[i] = (float) (-40 + random.nextGaussian() * 0.3);
+			}
+		}
+
+		SampleProcessor.OnAttitudeListener listener = new SampleProcessor.OnAttitudeListener() {
+			@Override
+			public void onAttitude(Attitude attitude, float[] accelerometer, float[] magnetic)
+			{
+				lastAzimuth = attitude.getAzimuth();
+			}
+		};
+		final SampleProcessor unbatched = new SampleProcessor(listener);
+		unbatched.setBatching(false, null);
+		final SampleProcessor batched = new SampleProcessor(listener);
+		batched.setBatching(true, new Runnable() {
+			@Override
+			public void run()
+			{
+			}
+		});
+
+		System.out.println(samples + " samples in bursts of " + burstSize);
+		System.out.println("round  unbatched ns/sample  batched ns/sample  unbatched updates  batched updates");
+		float unbatchedAzimuth = 0, batchedAzimuth = 0;
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			unbatched.reset();
+			long before = unbatched.getPublishCount();
+			long start = System.nanoTime();
+			for (int i = 0; i < samples; i++)
+				unbatched.onSample(sensor[i], time[i], x[i], y[i], z[i]);
+			long unbatchedTime = System.nanoTime() - start;
+			long unbatchedUpdates = unbatched.getPublishCount() - before;
+			unbatchedAzimuth = lastAzimuth;
+
+			batched.reset();
+			before = batched.getPublishCount();
+			start = System.nanoTime();
+			for (int b = 0; b < bursts; b++)
+			{
+				int end = (b + 1) * burstSize;
+				for (int i = b * burstSize; i < end; i++)
+					batched.onSample(sensor[i], time[i], x[i], y[i], z[i]);
+				batched.processBurst();
+			}
+			long batchedTime = System.nanoTime() - start;
+			long batchedUpdates = batched.getPublishCount() - before;
+			batchedAzimuth = lastAzimuth;
+
+			System.out.println(String.format("%5d  %19.1f  %17.1f  %17d  %15d", round, (double) unbatchedTime / samples, (double) batchedTime / samples, unbatchedUpdates, batchedUpdates));
+		}
+
+		System.out.println("final azimuth unbatched " + unbatchedAzimuth + ", batched " + batchedAzimuth);
+		if (unbatchedAzimuth != batchedAzimuth)
+		{
+			System.out.println("MISMATCH");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.Random;
+
+/**
+ * One hour simulation of course hold alarm, runs on plain JVM. Heading noise
+ * sits exactly on tolerance border and on the fast sampling border, alarm
+ * and sampling rate changes are compared with plain threshold. A drift
+ * scenario checks that real course loss is still reported within debounce
+ * time and cleared after return. Exits with non-zero status if alarm
+ * flickers or misses the drift.
+ *
+ * Usage: CourseHoldSimulation [rate Hz] [noise degrees]
+ */
+public class CourseHoldSimulation
+{
+	private static final float COURSE = 350;
+	private static final float TOLERANCE = 10;
+	private static final long HOUR = 3600000000000L;
+	/** Allowed alarm changes per hour for noise on the border */
+	private static final int MAX_CHANGES = 2;
+
+	private static int failures;
+
+	public static void main(String[] args)
+	{
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		double noise = args.length > 1 ? Double.parseDouble(args[1]) : 1.5;
+		long step = 1000000000L / rate;
+
+		System.out.println(String.format("course %.0f, tolerance %.0f, %d Hz, noise %.1f deg", COURSE, TOLERANCE, rate, noise));
+		simulateBorder("tolerance border", TOLERANCE, step, noise);
+		simulateBorder("fast sampling border", TOLERANCE * 0.7f, step, noise);
+		simulateDrift(step, noise);
+
+		if (failures > 0)
+		{
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void simulateBorder(String name, float offset, long step, double noise)
+	{
+		Random random = new Random(1);
+		CourseHoldAlarm alarm = new CourseHoldAlarm(COURSE, TOLERANCE);
+		int alarmChanges = 0, nearChanges = 0, plainChanges = 0, plainNearChanges = 0;
+		boolean near = false, plain = false, plainNear = false;
+		long samples = 0;
+		for (long t = 0; t < HOUR; t += step)
+		{
+			float error = (float) (offset + random.nextGaussian() * noise);
+			// Sign alternates to cross north on both sides
+			if ((samples & 1) == 1)
+				error = -error;
+			float azimuth = wrap(COURSE + error);
+			if (alarm.update(azimuth, t))
+				alarmChanges++;
+			if (alarm.isNear() != near)
+			{
+				near = alarm.isNear();
+				nearChanges++;
+			}
+			boolean p = Math.abs(error) > TOLERANCE;
+			if (p != plain)
+			{
+				plain = p;
+				plainChanges++;
+			}
+			p = Math.abs(error) > TOLERANCE * 0.7f;
+			if (p != plainNear)
+			{
+				plainNear = p;
+				plainNearChanges++;
+			}
+			samples++;
+		}
+		System.out.println(String.format("%s: %d samples, alarm changes %d (plain threshold %d), rate changes %d (plain threshold %d)", name, samples, alarmChanges, plainChanges, nearChanges,
+				plainNearChanges));
+		check(name + ": alarm changes at most " + MAX_CHANGES + " per hour", alarmChanges <= MAX_CHANGES);
+		check(name + ": sampling rate does not flicker", nearChanges * 10 < Math.max(plainNearChanges, 1) || nearChanges == 0);
+	}
+
+	private static void simulateDrift(long step, double noise)
+	{
+		Random random = new Random(2);
+		CourseHoldAlarm alarm = new CourseHoldAlarm(COURSE, TOLERANCE);
+		// 10 min on course, 5 min 20 degrees off, back on course
+		long offStart = 600000000000L;
+		long offEnd = 900000000000L;
+		long raised = -1, cleared = -1;
+		int changes = 0;
+		for (long t = 0; t < HOUR; t += step)
+		{
+			float error = (float) ((t >= offStart && t < offEnd ? 20 : 0) + random.nextGaussian() * noise);
+			if (alarm.update(wrap(COURSE + error), t))
+			{
+				changes++;
+				if (alarm.isAlarm() && raised < 0)
+					raised = t;
+				else if (!alarm.isAlarm() && cleared < 0)
+					cleared = t;
+			}
+		}
+		long limit = CourseHoldAlarm.DEBOUNCE + 2 * step;
+		System.out.println(String.format("drift: raised after %.1f s, cleared after %.1f s, %d changes", (raised - offStart) / 1e9, (cleared - offEnd) / 1e9, changes));
+		check("drift: alarm raised within debounce", raised >= offStart && raised - offStart <= limit);
+		check("drift: alarm cleared within debounce", cleared >= offEnd && cleared - offEnd <= limit);
+		check("drift: alarm raised and cleared once", changes == 2);
+	}
+
+	private static float wrap(float azimuth)
+	{
+		if (azimuth >= 360)
+			return azimuth - 360;
+		if (azimuth < 0)
+			return azimuth + 360;
+		return azimuth;
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		System.out.println((ok ? "PASS  " : "FAIL  ") + name);
+		if (!ok)
+			failures++;
+	}
+}
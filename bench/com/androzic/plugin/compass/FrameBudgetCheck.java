@@ -0,0 +1,139 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * Draws dial frames on recording surface in every dial mode (smooth and
+ * immediate needle, fixed and rotating face, flat and tilted dial, with and
+ * without waypoints) across surface sizes, pitches and rolls, runs on plain
+ * JVM. Exits with non-zero status if any frame exceeds operation count or
+ * CPU time budget of {@link FrameStats} or leaves save stack unbalanced.
+ *
+ * Usage: FrameBudgetCheck [frames per mode]
+ */
+public class FrameBudgetCheck
+{
+	private static final int[][] SIZES = { { 240, 320 }, { 320, 240 }, { 480, 800 }, { 800, 480 }, { 1080, 1920 }, { 1920, 1080 }, { 1600, 2560 } };
+	private static final float[] PITCHES = { -89, -45, 0, 30, 89 };
+	private static final float[] ROLLS = { -60, 0, 45 };
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args)
+	{
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+
+		Random random = new Random(1);
+		String[] names = new String[50];
+		double[] latitudes = new double[names.length];
+		double[] longitudes = new double[names.length];
+		for (int i = 0; i < names.length; i++)
+		{
+			names[i] = "WPT" + i;
+			latitudes[i] = 55.75 + random.nextGaussian() * 0.05;
+			longitudes[i] = 37.62 + random.nextGaussian() * 0.05;
+		}
+		WaypointOverlay overlay = new WaypointOverlay();
+		overlay.setWaypoints(names, latitudes, longitudes);
+		overlay.setMaxCount(WaypointOverlay.MAX_WAYPOINTS);
+		overlay.setPosition(55.75, 37.62, 11f);
+
+		boolean ok = true;
+		// First pass lets JIT compile drawing code, only the second one is checked
+		for (int pass = 0; pass < 2; pass++)
+		{
+			boolean check = pass == 1;
+			if (check)
+				System.out.println("smooth  rotate  tilt  waypoints  draws  transforms  texts  bitmaps  max cpu us  avg cpu us");
+			for (int mode = 0; mode < 16; mode++)
+			{
+				boolean smooth = (mode & 1) != 0;
+				boolean rotate = (mode & 2) != 0;
+				boolean tilt = (mode & 4) != 0;
+				boolean waypoints = (mode & 8) != 0;
+				int draws = 0, transforms = 0, texts = 0, bitmaps = 0;
+				long maxCpu = 0, totalCpu = 0, count = 0;
+
+				for (int[] size : SIZES)
+				{
+					for (float pitch : PITCHES)
+					{
+						for (float roll : ROLLS)
+						{
+							FrameStats stats = new FrameStats();
+							RecordingSurface surface = new RecordingSurface(null, stats);
+							surface.setBitmapSize(DrawSurface.BITMAP_NEEDLE, 60, 440);
+							DialRenderer renderer = new DialRenderer();
+							renderer.setSmoothing(smooth);
+							renderer.setFaceRotation(rotate);
+							renderer.setWaypointOverlay(waypoints ? overlay : null);
+							renderer.setSize(size[0], size[1], surface);
+							if (tilt)
+							{
+								// Texture is drawn once per size, not per frame
+								renderer.drawFace(new RecordingSurface(null, new FrameStats()));
+								renderer.setFaceTexture(true);
+								int side = renderer.getFaceTextureSize();
+								surface.setBitmapSize(DrawSurface.BITMAP_FACE, side, side);
+							}
+
+							for (int f = 0; f < frames; f++)
+							{
+								renderer.setAzimuth((f * 37) % 360 + 0.3f);
+								renderer.setPitch(pitch + f % 3);
+								renderer.setRoll(roll);
+								renderer.animate();
+								stats.begin(threads.getCurrentThreadCpuTime());
+								renderer.draw(surface);
+								stats.end(threads.getCurrentThreadCpuTime());
+								if (!check)
+									continue;
+
+								draws = Math.max(draws, stats.draws);
+								transforms = Math.max(transforms, stats.transforms);
+								texts = Math.max(texts, stats.texts);
+								bitmaps = Math.max(bitmaps, stats.bitmaps);
+								maxCpu = Math.max(maxCpu, stats.cpuTime);
+								totalCpu += stats.cpuTime;
+								count++;
+								if (stats.isOverBudget() || surface.getDepth() != 0)
+								{
+									if (ok || stats.isOverBudget())
+										System.out.println("FAIL smooth " + smooth + ", rotate " + rotate + ", tilt " + tilt + ", waypoints " + waypoints + ", " + size[0] + "x" + size[1] + ", pitch " + pitch + ", roll " + roll + ": " + stats + ", save depth " + surface.getDepth());
+									ok = false;
+								}
+							}
+						}
+					}
+				}
+				if (check)
+					System.out.println(String.format("%-6b  %-6b  %-5b  %-9b  %5d  %10d  %5d  %7d  %10d  %10d", smooth, rotate, tilt, waypoints, draws, transforms, texts, bitmaps, maxCpu / 1000, totalCpu / count / 1000));
+			}
+		}
+		System.out.println(ok ? "OK" : "OVER BUDGET");
+		if (!ok)
+			System.exit(1);
+	}
+}
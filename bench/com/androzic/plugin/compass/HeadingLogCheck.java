@@ -0,0 +1,253 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Correctness check of {@link HeadingLog} rollups and queries, runs on plain
+ * JVM in a temporary directory. Synthetic samples cross north and have known
+ * pitch and roll pattern. Checks query results of every tier against
+ * brute-force aggregation of the same samples, merging of the coarsest tier
+ * into fewer points, resuming of incomplete buckets after reopen and raw tier
+ * retention. Exits with non-zero status on failure.
+ *
+ * Usage: HeadingLogCheck
+ */
+public class HeadingLogCheck
+{
+	// Aligned to ten minutes, so that bucket boundaries are predictable
+	private static final long START = 600000L * 2000000;
+	private static final float EPSILON = 1e-3f;
+
+	private static int failures;
+
+	public static void main(String[] args) throws IOException
+	{
+		File root = File.createTempFile("headinglog", "");
+		root.delete();
+
+		// Half an hour at 10 Hz, ends in the middle of a second
+		int count = 18005;
+		long[] time = new long[count];
+		float[] azimuth = new float[count];
+		float[] pitch = new float[count];
+		float[] roll = new float[count];
+		for (int i = 0; i < count; i++)
+		{
+			time[i] = START + i * 100L;
+			azimuth[i] = normalize(355 + (i % 20) * 0.5f + (i / 3000) * 40);
+			pitch[i] = i % 10;
+			roll[i] = -(i % 7);
+		}
+
+		HeadingLog log = new HeadingLog(new File(root, "continuous"));
+		append(log, time, azimuth, pitch, roll, 0, count);
+		log.close();
+
+		// The same samples with reopen in the middle of a second, a minute
+		// and ten minutes bucket
+		int split = 14555;
+		File dir = new File(root, "reopened");
+		log = new HeadingLog(dir);
+		append(log, time, azimuth, pitch, roll, 0, split);
+		log.close();
+		log = new HeadingLog(dir);
+		append(log, time, azimuth, pitch, roll, split, count);
+		log.close();
+
+		// Reopen without new samples must not alter anything
+		log = new HeadingLog(dir);
+		log.close();
+		log = new HeadingLog(dir);
+		checkTiers(log, time, azimuth, pitch, roll, "reopened");
+		checkMerging(log, count);
+		log.close();
+
+		log = new HeadingLog(new File(root, "continuous"));
+		checkTiers(log, time, azimuth, pitch, roll, "continuous");
+		log.close();
+
+		checkRetention(new File(root, "retention"));
+
+		delete(root);
+		if (failures > 0)
+		{
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void append(HeadingLog log, long[] time, float[] azimuth, float[] pitch, float[] roll, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			log.append(time[i], azimuth[i], pitch[i], roll[i]);
+			if (i % 1000 == 999)
+				log.flush();
+		}
+		log.flush();
+	}
+
+	/**
+	 * Queries each tier over the whole log and compares every point with
+	 * aggregation of samples that fall into it.
+	 */
+	private static void checkTiers(HeadingLog log, long[] time, float[] azimuth, float[] pitch, float[] roll, String name) throws IOException
+	{
+		long end = time[time.length - 1];
+		// Ranges that select each tier
+		long[][] ranges = { { START + 5000, START + 9999, 100 }, { START, START + 299999, 300 }, { START, end, 40 }, { START, end, 3 } };
+		for (int tier = HeadingLog.TIER_RAW; tier <= HeadingLog.TIER_TEN_MINUTES; tier++)
+		{
+			long[] range = ranges[tier];
+			HeadingLog.Series series = log.query(range[0], range[1], (int) range[2]);
+			String prefix = name + " tier " + tier;
+			if (series.tier != tier)
+			{
+				check(prefix + " selected", false);
+				continue;
+			}
+			boolean ok = true;
+			long previous = Long.MIN_VALUE;
+			int total = 0;
+			for (int p = 0; p < series.length; p++)
+			{
+				ok &= series.time[p] > previous;
+				previous = series.time[p];
+				long next = p + 1 < series.length ? series.time[p + 1] : Long.MAX_VALUE;
+				ok &= comparePoint(series, p, time, azimuth, pitch, roll, Math.max(series.time[p], range[0]), Math.min(next - 1, range[1]));
+				total += series.count[p];
+			}
+			System.out.println(String.format("%s: %d points, %d samples", prefix, series.length, total));
+			check(prefix + " points match samples", ok && series.length > 0);
+		}
+	}
+
+	private static boolean comparePoint(HeadingLog.Series series, int p, long[] time, float[] azimuth, float[] pitch, float[] roll, long from, long to)
+	{
+		int n = 0;
+		float pitchMin = Float.MAX_VALUE, pitchMax = -Float.MAX_VALUE, rollMin = Float.MAX_VALUE, rollMax = -Float.MAX_VALUE;
+		double pitchSum = 0, rollSum = 0, sin = 0, cos = 0;
+		boolean inside = true, minFound = false, maxFound = false;
+		for (int i = 0; i < time.length; i++)
+		{
+			// Rollup points start at bucket boundary, samples of the bucket
+			// before the range are counted too
+			if (time[i] < series.time[p] || time[i] > to)
+				continue;
+			n++;
+			pitchMin = Math.min(pitchMin, pitch[i]);
+			pitchMax = Math.max(pitchMax, pitch[i]);
+			pitchSum += pitch[i];
+			rollMin = Math.min(rollMin, roll[i]);
+			rollMax = Math.max(rollMax, roll[i]);
+			rollSum += roll[i];
+			sin += Math.sin(Math.toRadians(azimuth[i]));
+			cos += Math.cos(Math.toRadians(azimuth[i]));
+			float offset = normalize(azimuth[i] - series.azimuthMin[p]);
+			float arc = normalize(series.azimuthMax[p] - series.azimuthMin[p]);
+			inside &= offset <= arc + EPSILON || offset >= 360 - EPSILON;
+			minFound |= Math.abs(angle(azimuth[i], series.azimuthMin[p])) < EPSILON;
+			maxFound |= Math.abs(angle(azimuth[i], series.azimuthMax[p])) < EPSILON;
+		}
+		float mean = (float) Math.toDegrees(Math.atan2(sin, cos));
+		boolean ok = n == series.count[p];
+		ok &= series.pitchMin[p] == pitchMin && series.pitchMax[p] == pitchMax && Math.abs(series.pitchMean[p] - pitchSum / n) < EPSILON;
+		ok &= series.rollMin[p] == rollMin && series.rollMax[p] == rollMax && Math.abs(series.rollMean[p] - rollSum / n) < EPSILON;
+		ok &= inside && minFound && maxFound;
+		// Mean of means equals mean of samples only if buckets are equally
+		// spread, allow some slack
+		ok &= Math.abs(angle(series.azimuthMean[p], mean)) < 0.5;
+		if (!ok)
+			System.out.println(String.format("  point %d at %d: count %d/%d pitch %.2f..%.2f/%.2f..%.2f roll %.2f..%.2f/%.2f..%.2f azimuth %.2f..%.2f mean %.3f/%.3f inside %b", p, series.time[p] - START, series.count[p], n, series.pitchMin[p], series.pitchMax[p], pitchMin, pitchMax, series.rollMin[p], series.rollMax[p], rollMin, rollMax, series.azimuthMin[p], series.azimuthMax[p], series.azimuthMean[p], mean, inside));
+		return ok;
+	}
+
+	private static void checkMerging(HeadingLog log, int count) throws IOException
+	{
+		// Three ten minute records are merged into two points
+		HeadingLog.Series series = log.query(START, START + 3600000, 2);
+		check("merged into requested number of points", series.tier == HeadingLog.TIER_TEN_MINUTES && series.length == 2);
+		check("merged points cover the whole range", series.length == 2 && series.time[0] == START && series.time[1] == START + 1200000);
+		int total = 0;
+		for (int p = 0; p < series.length; p++)
+			total += series.count[p];
+		check("merged points keep all samples", total == count);
+		series = log.query(START, START + 3600000, 1);
+		check("single point has overall pitch", series.length == 1 && series.pitchMin[0] == 0 && series.pitchMax[0] == 9 && Math.abs(series.pitchMean[0] - 4.5) < 0.01);
+	}
+
+	private static void checkRetention(File dir) throws IOException
+	{
+		// 100 Hz for 75 minutes exceeds raw tier limit
+		HeadingLog log = new HeadingLog(dir);
+		int count = 450000;
+		for (int i = 0; i < count; i++)
+		{
+			log.append(START + i * 10L, i % 360, 0, 0);
+			if (i % 1000 == 999)
+				log.flush();
+		}
+		log.flush();
+		long end = START + (count - 1) * 10L;
+		HeadingLog.Series series = log.query(end - 999, end, 1000);
+		check("recent raw data is kept", series.tier == HeadingLog.TIER_RAW && series.length == 100);
+		series = log.query(START, START + 9999, 1000);
+		check("expired raw range falls back to seconds", series.tier == HeadingLog.TIER_SECOND && series.length == 10);
+		log.close();
+		long size = new File(dir, "raw.log").length();
+		System.out.println("raw tier size after " + count + " samples: " + size + " bytes");
+		check("raw tier is bounded", size <= 8 * 1024 * 1024);
+	}
+
+	private static float normalize(float azimuth)
+	{
+		azimuth %= 360;
+		return azimuth < 0 ? azimuth + 360 : azimuth;
+	}
+
+	private static float angle(float a, float b)
+	{
+		float d = normalize(a - b);
+		return d > 180 ? d - 360 : d;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		System.out.println((ok ? "PASS  " : "FAIL  ") + name);
+		if (!ok)
+			failures++;
+	}
+}
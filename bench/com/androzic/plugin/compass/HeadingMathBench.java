@@ -0,0 +1,180 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.Random;
+
+import com.androzic.util.easing.Easing;
+import com.androzic.util.easing.QuinticInOut;
+import com.androzic.util.easing.TableEasing;
+
+/**
+ * Error sweep and timing of {@link HeadingMath} lookup tables against
+ * java.lang.Math, and of table easing against computed quintic easing, runs
+ * on plain JVM. Errors are measured against double precision results over
+ * the whole argument range, exits with non-zero status if any exceeds the
+ * bound documented in HeadingMath. Timings are nanoseconds per call, best
+ * of several rounds.
+ *
+ * Usage: HeadingMathBench [calls per round]
+ */
+public class HeadingMathBench
+{
+	private static final double MAX_SIN_ERROR = 5e-6;
+	private static final double MAX_ATAN2_ERROR = 4e-5;
+	private static final double MAX_ASIN_ERROR = 6e-5;
+	/** Degrees for half-turn of the needle */
+	private static final double MAX_EASING_ERROR = 2.5e-3;
+
+	private static final int ROUNDS = 6;
+	private static final int EASING_STEPS = 256;
+
+	private static int failures;
+	// Keeps results alive so that loops are not eliminated
+	private static volatile float sink;
+
+	public static void main(String[] args)
+	{
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		Easing quintic = new QuinticInOut();
+		Easing table = new TableEasing(quintic, EASING_STEPS);
+
+		sweepErrors(quintic, table);
+		measureTimes(calls, quintic, table);
+
+		if (failures > 0)
+		{
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void sweepErrors(Easing quintic, Easing table)
+	{
+		HeadingMath.setTables(true);
+
+		double sinError = 0;
+		for (int i = 0; i <= 3600000; i++)
+		{
+			float degrees = -720f + i * 0.0004f;
+			double radians = Math.toRadians(degrees);
+			sinError = Math.max(sinError, Math.abs(HeadingMath.sin(degrees) - Math.sin(radians)));
+			sinError = Math.max(sinError, Math.abs(HeadingMath.cos(degrees) - Math.cos(radians)));
+		}
+
+		Random random = new Random(1);
+		double atan2Error = 0;
+		double asinError = 0;
+		for (int i = 0; i < 5000000; i++)
+		{
+			float x = (float) (random.nextGaussian() * 10);
+			float y = (float) (random.nextGaussian() * 10);
+			atan2Error = Math.max(atan2Error, Math.abs(HeadingMath.atan2(y, x) - Math.toDegrees(Math.atan2(y, x))));
+			float v = (float) (random.nextDouble() * 2 - 1);
+			asinError = Math.max(asinError, Math.abs(HeadingMath.asin(v) - Math.toDegrees(Math.asin(v))));
+		}
+		// Derivative of asin grows near the ends
+		for (float v = 0.999f; v <= 1f; v += 1e-7f)
+		{
+			asinError = Math.max(asinError, Math.abs(HeadingMath.asin(v) - Math.toDegrees(Math.asin(v))));
+			asinError = Math.max(asinError, Math.abs(HeadingMath.asin(-v) - Math.toDegrees(Math.asin(-v))));
+		}
+
+		double easingError = 0;
+		for (int i = 0; i <= 40000; i++)
+			easingError = Math.max(easingError, Math.abs(table.ease(i, 0, 180, 40000) - quintic.ease(i, 0, 180, 40000)));
+
+		HeadingMath.setTables(false);
+
+		System.out.println(String.format("max error: sin/cos %.2e, atan2 %.2e deg, asin %.2e deg, easing %.2e deg per 180 deg turn", sinError, atan2Error, asinError, easingError));
+		check("sin/cos error below " + MAX_SIN_ERROR, sinError < MAX_SIN_ERROR);
+		check("atan2 error below " + MAX_ATAN2_ERROR + " deg", atan2Error < MAX_ATAN2_ERROR);
+		check("asin error below " + MAX_ASIN_ERROR + " deg", asinError < MAX_ASIN_ERROR);
+		check("easing error below " + MAX_EASING_ERROR + " deg", easingError < MAX_EASING_ERROR);
+	}
+
+	private static void measureTimes(int calls, Easing quintic, Easing table)
+	{
+		Random random = new Random(2);
+		float[] xs = new float[4096];
+		float[] ys = new float[4096];
+		for (int i = 0; i < xs.length; i++)
+		{
+			xs[i] = (float) random.nextGaussian();
+			ys[i] = (float) random.nextGaussian();
+		}
+
+		// Best of rounds, first rounds include compilation
+		double[][] best = new double[2][4];
+		for (double[] b : best)
+			java.util.Arrays.fill(b, Double.MAX_VALUE);
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int mode = 0; mode < 2; mode++)
+			{
+				HeadingMath.setTables(mode == 1);
+				Easing easing = mode == 1 ? table : quintic;
+				float acc = 0;
+				long t0 = System.nanoTime();
+				for (int k = 0; k < calls; k++)
+				{
+					int j = k & 4095;
+					acc += HeadingMath.atan2(ys[j], xs[j]);
+				}
+				long t1 = System.nanoTime();
+				for (int k = 0; k < calls; k++)
+					acc += HeadingMath.asin(ys[k & 4095] * 0.3f);
+				long t2 = System.nanoTime();
+				for (int k = 0; k < calls; k++)
+				{
+					float degrees = xs[k & 4095] * 100;
+					acc += HeadingMath.sin(degrees) + HeadingMath.cos(degrees);
+				}
+				long t3 = System.nanoTime();
+				for (int k = 0; k < calls; k++)
+					acc += easing.ease(k & 4095, 0, 90, 4096);
+				long t4 = System.nanoTime();
+				sink += acc;
+
+				double[] b = best[mode];
+				b[0] = Math.min(b[0], (double) (t1 - t0) / calls);
+				b[1] = Math.min(b[1], (double) (t2 - t1) / calls);
+				b[2] = Math.min(b[2], (double) (t3 - t2) / calls);
+				b[3] = Math.min(b[3], (double) (t4 - t3) / calls);
+			}
+		}
+		HeadingMath.setTables(false);
+
+		System.out.println(String.format("%s %s, ns per call", System.getProperty("java.vm.name"), System.getProperty("java.version")));
+		System.out.println("         atan2   asin  sin+cos  easing");
+		System.out.println(String.format("math   %6.1f %6.1f   %6.1f  %6.1f", best[0][0], best[0][1], best[0][2], best[0][3]));
+		System.out.println(String.format("table  %6.1f %6.1f   %6.1f  %6.1f", best[1][0], best[1][1], best[1][2], best[1][3]));
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		System.out.println((ok ? "PASS  " : "FAIL  ") + name);
+		if (!ok)
+			failures++;
+	}
+}
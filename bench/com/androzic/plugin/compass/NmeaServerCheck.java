@@ -0,0 +1,331 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Checks NMEA server against local socket clients and measures it with many
+ * connections, runs on plain JVM. Verifies that default server is reachable
+ * only over loopback and network mode from host address, that UDP datagrams
+ * go to loopback, that every TCP client receives all sentences with valid
+ * checksums and that clients over the limit are refused. Exits with
+ * non-zero status on any failure.
+ *
+ * Usage: NmeaServerCheck [clients] [seconds] [rate]
+ */
+public class NmeaServerCheck
+{
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private static int failures;
+
+	private static class Reader
+	{
+		final SocketChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(4096);
+		int sentences;
+		int invalid;
+		boolean closed;
+
+		Reader(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		void parse()
+		{
+			buffer.flip();
+			int start = buffer.position();
+			for (int i = start; i < buffer.limit() - 1; i++)
+			{
+				if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n')
+				{
+					byte[] line = new byte[i - start];
+					for (int j = 0; j < line.length; j++)
+						line[j] = buffer.get(start + j);
+					if (isValid(line))
+						sentences++;
+					else
+						invalid++;
+					start = i + 2;
+					i++;
+				}
+			}
+			buffer.position(start);
+			buffer.compact();
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		checkBinding();
+		checkDatagram();
+		checkClients(clients, seconds, rate);
+
+		if (failures > 0)
+		{
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void checkBinding() throws IOException
+	{
+		InetAddress host = findHostAddress();
+
+		NmeaServer server = new NmeaServer(0, 10, false);
+		server.start();
+		try
+		{
+			check("local mode accepts loopback", canConnect(InetAddress.getByName("127.0.0.1"), server.getLocalPort()));
+			if (host != null)
+				check("local mode refuses " + host.getHostAddress(), !canConnect(host, server.getLocalPort()));
+			else
+				System.out.println("SKIP  no non-loopback address to check local mode");
+		}
+		finally
+		{
+			server.stop();
+		}
+
+		server = new NmeaServer(0, 10, true);
+		server.start();
+		try
+		{
+			if (host != null)
+				check("network mode accepts " + host.getHostAddress(), canConnect(host, server.getLocalPort()));
+			else
+				System.out.println("SKIP  no non-loopback address to check network mode");
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	private static void checkDatagram() throws IOException
+	{
+		DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		socket.setSoTimeout(2000);
+		NmeaServer server = new NmeaServer(socket.getLocalPort(), 10, false);
+		try
+		{
+			server.start();
+			server.setAttitude(123.4f, -5f, 10f);
+			byte[] data = new byte[1024];
+			DatagramPacket packet = new DatagramPacket(data, data.length);
+			boolean received;
+			try
+			{
+				socket.receive(packet);
+				received = true;
+			}
+			catch (SocketTimeoutException e)
+			{
+				received = false;
+			}
+			check("local mode sends datagram to loopback", received);
+			if (received)
+			{
+				String text = new String(data, 0, packet.getLength(), "US-ASCII");
+				String[] lines = text.split("\r\n");
+				boolean valid = lines.length == 3;
+				for (String line : lines)
+					valid &= isValid(line.getBytes("US-ASCII"));
+				check("datagram carries 3 valid sentences", valid);
+				check("datagram starts with HDM 123.4", text.startsWith("$HCHDM,123.4,M*"));
+			}
+		}
+		catch (IOException e)
+		{
+			// Random port may be taken on TCP side
+			System.out.println("SKIP  datagram check: " + e);
+		}
+		finally
+		{
+			server.stop();
+			socket.close();
+		}
+	}
+
+	private static void checkClients(int clients, int seconds, int rate) throws IOException, InterruptedException
+	{
+		NmeaServer server = new NmeaServer(0, rate, false);
+		server.start();
+		server.setAttitude(45f, 1f, -2f);
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), server.getLocalPort());
+		Selector selector = Selector.open();
+		ArrayList<Reader> readers = new ArrayList<Reader>();
+		try
+		{
+			for (int i = 0; i < clients; i++)
+			{
+				SocketChannel channel = SocketChannel.open(address);
+				channel.configureBlocking(false);
+				Reader reader = new Reader(channel);
+				channel.register(selector, SelectionKey.OP_READ, reader);
+				readers.add(reader);
+			}
+			// Let server accept all before counting
+			long deadline = System.currentTimeMillis() + 2000;
+			while (server.getClientCount() < Math.min(clients, 256) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+
+			Thread serverThread = findThread("NmeaServer");
+			long cpuStart = threads.getThreadCpuTime(serverThread.getId());
+			long ticksStart = server.getTickCount();
+			long bytesStart = server.getSentBytes();
+			long start = System.nanoTime();
+			long end = start + seconds * 1000000000L;
+			while (System.nanoTime() < end)
+			{
+				selector.select(100);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					Reader reader = (Reader) key.attachment();
+					if (reader.channel.read(reader.buffer) < 0)
+					{
+						reader.closed = true;
+						key.cancel();
+					}
+					else
+					{
+						reader.parse();
+					}
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			long cpu = threads.getThreadCpuTime(serverThread.getId()) - cpuStart;
+			long ticks = server.getTickCount() - ticksStart;
+			long bytes = server.getSentBytes() - bytesStart;
+
+			int served = 0, refused = 0, invalid = 0, fewest = Integer.MAX_VALUE;
+			for (Reader reader : readers)
+			{
+				if (reader.closed && reader.sentences == 0)
+				{
+					refused++;
+					continue;
+				}
+				served++;
+				invalid += reader.invalid;
+				fewest = Math.min(fewest, reader.sentences);
+			}
+			System.out.println(String.format("%d clients, %d served, %d refused, %d s at %d Hz", clients, served, refused, seconds, rate));
+			System.out.println(String.format("ticks %d, sent %d bytes, server cpu %.1f ms (%.1f us per tick, %.2f%% of one core)", ticks, bytes, cpu / 1e6, ticks > 0 ? cpu / 1e3 / ticks : 0, cpu * 100.0 / elapsed));
+			System.out.println(String.format("fewest sentences per client %d, dropped slow clients %d", fewest, server.getDroppedClientCount()));
+
+			int expected = Math.min(clients, 256);
+			check("server holds " + expected + " clients", served == expected && server.getClientCount() == expected);
+			check("clients over limit are refused", refused == clients - expected);
+			check("no invalid sentences", invalid == 0);
+			// First and last tick may fall outside of measured window
+			check("every client receives every tick", served == 0 || fewest >= (ticks - 2) * 3);
+			check("no client dropped as slow", server.getDroppedClientCount() == 0);
+		}
+		finally
+		{
+			for (Reader reader : readers)
+				reader.channel.close();
+			selector.close();
+			server.stop();
+		}
+	}
+
+	private static boolean isValid(byte[] line)
+	{
+		int n = line.length;
+		if (n < 4 || line[0] != '$' || line[n - 3] != '*')
+			return false;
+		int checksum = 0;
+		for (int i = 1; i < n - 3; i++)
+			checksum ^= line[i];
+		String hex = new String(line, n - 2, 2);
+		return hex.equals(String.format("%02X", checksum));
+	}
+
+	private static boolean canConnect(InetAddress address, int port)
+	{
+		try
+		{
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+			channel.close();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	private static InetAddress findHostAddress() throws IOException
+	{
+		for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces()))
+		{
+			if (!networkInterface.isUp() || networkInterface.isLoopback())
+				continue;
+			for (InetAddress address : Collections.list(networkInterface.getInetAddresses()))
+				if (address instanceof Inet4Address)
+					return address;
+		}
+		return null;
+	}
+
+	private static Thread findThread(String name)
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().equals(name))
+				return thread;
+		throw new IllegalStateException("No thread " + name);
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		System.out.println((ok ? "PASS  " : "FAIL  ") + name);
+		if (!ok)
+			failures++;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that digital readout does not allocate while updating and drawing,
+ * runs on plain JVM (HotSpot, uses per-thread allocation counter). Values
+ * sweep full heading and signed angle ranges at display precision and are
+ * drawn on recording surface. Exits with non-zero status if readout
+ * allocates.
+ * <p>
+ * With -Xint any allocated byte fails the check. With JIT compiler tier
+ * transitions allocate a few hundred bytes on the running thread now and
+ * then, so a pass fails when it allocates a byte or more per call (smallest
+ * object takes 16 bytes). First measured pass runs mostly interpreted, so
+ * escape analysis of compiled code can not hide allocations either way.
+ *
+ * Usage: java [-Xint] ReadoutAllocationCheck [passes]
+ */
+public class ReadoutAllocationCheck
+{
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args)
+	{
+		int passes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+		RecordingSurface surface = new RecordingSurface(null, new FrameStats());
+		surface.setTextSize(DrawSurface.PAINT_READOUT, 24);
+		DigitalReadout heading = new DigitalReadout(true);
+		DigitalReadout angle = new DigitalReadout(false);
+		heading.measure(surface, DrawSurface.PAINT_READOUT);
+		angle.measure(surface, DrawSurface.PAINT_READOUT);
+
+		long thread = Thread.currentThread().getId();
+		boolean interpreted = System.getProperty("java.vm.info", "").contains("interpreted");
+		// Loads classes and lets counter call allocate on first use
+		sweep(surface, heading, angle);
+		threads.getThreadAllocatedBytes(thread);
+		surface.getStats().texts = 0;
+
+		boolean failed = false;
+		for (int pass = 0; pass < passes; pass++)
+		{
+			long before = threads.getThreadAllocatedBytes(thread);
+			int changes = sweep(surface, heading, angle);
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+			int calls = surface.getStats().texts * 2;
+			System.out.println(String.format("pass %2d: %d calls, %d updates, %d bytes allocated", pass, calls, changes, allocated));
+			surface.getStats().texts = 0;
+			if (interpreted ? allocated > 0 : allocated >= calls)
+				failed = true;
+		}
+		if (failed)
+		{
+			System.out.println("FAILED: readout allocates");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static int sweep(DrawSurface surface, DigitalReadout heading, DigitalReadout angle)
+	{
+		int changes = 0;
+		for (int i = -3600; i <= 7200; i++)
+		{
+			float degrees = i * 0.1f + 0.03f;
+			if (heading.setValue(degrees))
+				changes++;
+			heading.draw(surface, 100, 100, DrawSurface.PAINT_READOUT);
+			if (angle.setValue(degrees / 4))
+				changes++;
+			angle.draw(surface, 100, 140, DrawSurface.PAINT_READOUT);
+		}
+		return changes;
+	}
+}
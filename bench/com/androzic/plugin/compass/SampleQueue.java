@@ -0,0 +1,129 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single producer, single consumer queue of sensor samples kept in
+ * primitive arrays. Producer never blocks, samples offered to full queue are
+ * dropped and counted.
+ */
+public class SampleQueue
+{
+	private final int capacity;
+	private final int[] sensor;
+	private final long[] timestamp;
+	private final float[] x;
+	private final float[] y;
+	private final float[] z;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private long dropped;
+	private int maxDepth;
+
+	public SampleQueue(int capacity)
+	{
+		this.capacity = capacity;
+		sensor = new int[capacity];
+		timestamp = new long[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		z = new float[capacity];
+	}
+
+	/**
+	 * Called by producer.
+	 *
+	 * @return false if queue is full and sample was dropped
+	 */
+	public boolean offer(int type, long time, float vx, float vy, float vz)
+	{
+		long t = tail.get();
+		int depth = (int) (t - head.get());
+		if (depth == capacity)
+		{
+			dropped++;
+			return false;
+		}
+		int i = (int) (t % capacity);
+		sensor[i] = type;
+		timestamp[i] = time;
+		x[i] = vx;
+		y[i] = vy;
+		z[i] = vz;
+		tail.lazySet(t + 1);
+		if (depth + 1 > maxDepth)
+			maxDepth = depth + 1;
+		return true;
+	}
+
+	/**
+	 * Called by consumer, passes at most max samples to listener.
+	 *
+	 * @return number of delivered samples
+	 */
+	public int drain(SensorSource.SampleListener listener, int max)
+	{
+		long h = head.get();
+		int n = (int) Math.min(tail.get() - h, max);
+		for (int k = 0; k < n; k++)
+		{
+			int i = (int) ((h + k) % capacity);
+			listener.onSample(sensor[i], timestamp[i], x[i], y[i], z[i]);
+		}
+		head.lazySet(h + n);
+		return n;
+	}
+
+	public int size()
+	{
+		return (int) (tail.get() - head.get());
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Returns number of dropped samples, read by producer or after it has
+	 * stopped.
+	 */
+	public long getDroppedCount()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Returns the largest observed queue depth.
+	 */
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	public void clear()
+	{
+		head.set(tail.get());
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput stress harness for sensor pipeline, runs on plain JVM:
+ * synthetic source, sample queue, attitude processing and heading log.
+ * Prints per second rates, queue depth and drops of each stage.
+ *
+ * Usage: SensorStress [profile] [rate] [seconds] [batching]
+ */
+public class SensorStress
+{
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		int profile = args.length > 0 ? Integer.parseInt(args[0]) : SyntheticSensorSource.PROFILE_ROTATION;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : SyntheticSensorSource.DEFAULT_RATE;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		boolean batching = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+		File directory = File.createTempFile("headinglog", "");
+		directory.delete();
+		final HeadingLog log = new HeadingLog(directory);
+		log.start();
+
+		// Single consumer thread stands for the main looper
+		final ExecutorService consumer = Executors.newSingleThreadExecutor();
+		final SampleProcessor processor = new SampleProcessor(new SampleProcessor.OnAttitudeListener() {
+			@Override
+			public void onAttitude(Attitude attitude, float[] accelerometer, float[] magnetic)
+			{
+				log.append(attitude.getTimestamp() / 1000000, attitude.getAzimuth(), attitude.getPitch(), attitude.getRoll());
+			}
+		});
+		final Runnable processBurst = new Runnable() {
+			@Override
+			public void run()
+			{
+				processor.processBurst();
+			}
+		};
+		processor.setBatching(batching, new Runnable() {
+			@Override
+			public void run()
+			{
+				consumer.execute(processBurst);
+			}
+		});
+
+		SyntheticSensorSource source = new SyntheticSensorSource(profile, rate, consumer);
+		SampleQueue queue = source.getQueue();
+
+		System.out.println("profile " + profile + ", " + rate + " Hz per sensor, batching " + batching);
+		System.out.println("sec  generated/s  processed/s  published/s  queue  max queue  queue drops  log drops");
+		source.start(processor, batching);
+		long generated = 0, processed = 0, published = 0;
+		for (int s = 1; s <= seconds; s++)
+		{
+			Thread.sleep(1000);
+			long g = source.getGeneratedCount();
+			long p = processor.getSampleCount();
+			long u = processor.getPublishCount();
+			System.out.println(String.format("%3d  %11d  %11d  %11d  %5d  %9d  %11d  %9d", s, g - generated, p - processed, u - published, queue.size(), queue.getMaxDepth(),
+					queue.getDroppedCount(), log.getDroppedCount()));
+			generated = g;
+			processed = p;
+			published = u;
+		}
+		source.stop();
+		consumer.shutdown();
+		consumer.awaitTermination(5, TimeUnit.SECONDS);
+		log.close();
+
+		System.out.println(String.format("total: generated %d, delivered %d, processed %d, published %d, queue drops %d (%.2f%%), log drops %d", source.getGeneratedCount(),
+				source.getDeliveredCount(), processor.getSampleCount(), processor.getPublishCount(), queue.getDroppedCount(), 100.0 * queue.getDroppedCount()
+						/ Math.max(1, source.getGeneratedCount()), log.getDroppedCount()));
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+}
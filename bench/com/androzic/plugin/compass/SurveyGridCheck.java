@@ -0,0 +1,254 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Check of {@link SurveyGrid}, runs on plain JVM in a temporary directory.
+ * Feeds a long survey track that crosses many tiles and checks that heap use
+ * after ingestion does not grow with track length, that visited cells match
+ * brute-force aggregation of the same samples and that visiting on another
+ * thread does not stall ingestion or see partially written tiles. Exits with
+ * non-zero status on failure.
+ *
+ * Usage: SurveyGridCheck [samples]
+ */
+public class SurveyGridCheck
+{
+	private static final double CELL_SIZE = 0.0001;
+	private static final int CHANNELS = 3;
+	/** Tiles in memory take about 1.5 MB, allow for collector noise */
+	private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+	/** Longest add() while another thread visits the grid, ms */
+	private static final long MAX_ADD_TIME = 50;
+
+	private static int failures;
+	private static volatile boolean done;
+
+	public static void main(String[] args) throws Exception
+	{
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+
+		File root = File.createTempFile("surveygrid", "");
+		root.delete();
+
+		checkHeap(new File(root, "heap"), samples);
+		checkCells(new File(root, "cells"));
+		checkConcurrentVisit(new File(root, "concurrent"));
+
+		delete(root);
+		if (failures > 0)
+		{
+			System.out.println(failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Track position of sample, meanders over about 400 by 60 cells so that
+	 * tiles are evicted and reloaded all the time.
+	 */
+	private static double latitude(int i)
+	{
+		return 55.0 + 0.006 * Math.sin(i * 1e-5) + (i % 7) * CELL_SIZE;
+	}
+
+	private static double longitude(int i)
+	{
+		return 37.0 + 0.04 * Math.sin(i * 3e-6) + (i % 11) * CELL_SIZE;
+	}
+
+	private static void checkHeap(File dir, int samples) throws IOException
+	{
+		SurveyGrid grid = new SurveyGrid(dir, CHANNELS, CELL_SIZE);
+		int tenth = samples / 10;
+		long baseline = 0;
+		long peak = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < samples; i++)
+		{
+			double lat = latitude(i);
+			double lon = longitude(i);
+			grid.add(lat, lon, 0, (float) Math.sin(i));
+			grid.add(lat, lon, 1, 60 + (i % 5));
+			grid.add(lat, lon, 2, Float.NaN);
+			if (i % tenth == tenth - 1)
+			{
+				long used = usedHeap();
+				if (baseline == 0)
+					baseline = used;
+				peak = Math.max(peak, used);
+			}
+		}
+		long time = System.nanoTime() - start;
+		grid.close();
+		int tiles = 0;
+		for (String name : dir.list())
+		{
+			if (name.endsWith(".bin"))
+				tiles++;
+		}
+		System.out.println(String.format("%d samples over %d tiles, %.0f ns per sample, heap after first tenth %d KB, peak %d KB", samples, tiles, (double) time / samples, baseline / 1024, peak / 1024));
+		check("track crosses more tiles than kept in memory", tiles > 16);
+		check("heap does not grow with track length", peak - baseline < MAX_HEAP_GROWTH);
+		check("no I/O errors", grid.getError() == null);
+	}
+
+	private static void checkCells(File dir) throws IOException
+	{
+		SurveyGrid grid = new SurveyGrid(dir, CHANNELS, CELL_SIZE);
+		HashMap<String, double[]> expected = new HashMap<String, double[]>();
+		for (int i = 0; i < 300000; i++)
+		{
+			double lat = latitude(i * 13);
+			double lon = longitude(i * 13);
+			float value = (float) ((i * 7919) % 1000) / 10f;
+			int channel = i % CHANNELS;
+			grid.add(lat, lon, channel, value);
+			String key = (long) Math.floor(lon / CELL_SIZE) + "," + (long) Math.floor(lat / CELL_SIZE) + "," + channel;
+			double[] s = expected.get(key);
+			if (s == null)
+			{
+				s = new double[3];
+				expected.put(key, s);
+			}
+			s[0]++;
+			s[1] += value;
+			s[2] += value * value;
+		}
+		grid.flush();
+
+		final HashMap<String, double[]> actual = new HashMap<String, double[]>();
+		grid.visit(new SurveyGrid.CellVisitor() {
+			@Override
+			public void visit(long cx, long cy, int channel, int count, float mean, float variance)
+			{
+				actual.put(cx + "," + cy + "," + channel, new double[] { count, mean, variance });
+			}
+		});
+		grid.close();
+
+		boolean ok = actual.size() == expected.size();
+		for (java.util.Map.Entry<String, double[]> entry : expected.entrySet())
+		{
+			double[] s = entry.getValue();
+			double[] a = actual.get(entry.getKey());
+			if (a == null)
+			{
+				ok = false;
+				continue;
+			}
+			double mean = s[1] / s[0];
+			double variance = s[0] > 1 ? (s[2] - s[0] * mean * mean) / (s[0] - 1) : 0;
+			ok &= a[0] == s[0] && Math.abs(a[1] - mean) < 1e-3 && Math.abs(a[2] - variance) < 1e-2 * Math.max(1, variance);
+		}
+		System.out.println(String.format("%d cells visited, %d expected", actual.size(), expected.size()));
+		check("visited cells match samples", ok);
+	}
+
+	private static void checkConcurrentVisit(File dir) throws Exception
+	{
+		final SurveyGrid grid = new SurveyGrid(dir, CHANNELS, CELL_SIZE);
+		final Object lock = new Object();
+		final int[] visits = new int[1];
+		final Exception[] error = new Exception[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!done)
+					{
+						synchronized (lock)
+						{
+							grid.flush();
+						}
+						final long[] total = new long[1];
+						grid.visit(new SurveyGrid.CellVisitor() {
+							@Override
+							public void visit(long cx, long cy, int channel, int count, float mean, float variance)
+							{
+								total[0] += count;
+							}
+						});
+						visits[0]++;
+					}
+				}
+				catch (Exception e)
+				{
+					error[0] = e;
+				}
+			}
+		};
+
+		long maxAdd = 0;
+		for (int i = 0; i < 200000; i++)
+		{
+			if (i == 100000)
+				reader.start();
+			long start = System.nanoTime();
+			synchronized (lock)
+			{
+				grid.add(latitude(i * 17), longitude(i * 17), 0, 1f);
+			}
+			if (i >= 100000)
+				maxAdd = Math.max(maxAdd, System.nanoTime() - start);
+		}
+		done = true;
+		reader.join();
+		grid.close();
+
+		System.out.println(String.format("%d concurrent visits, longest add %.2f ms", visits[0], maxAdd / 1e6));
+		check("visit on another thread sees only complete tiles", error[0] == null && visits[0] > 0);
+		check("ingestion is not blocked by visit", maxAdd / 1000000 < MAX_ADD_TIME);
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		System.out.println((ok ? "PASS  " : "FAIL  ") + name);
+		if (!ok)
+			failures++;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generates accelerometer and magnetometer samples of simulated motion at
+ * given rate. Samples are produced on a dedicated thread into bounded queue
+ * and delivered through executor, so queue depth and drops show whether the
+ * consumer keeps up. Does not depend on Android framework.
+ */
+public class SyntheticSensorSource implements SensorSource
+{
+	/** Steady turn with slow pitch and roll swing */
+	public static final int PROFILE_ROTATION = 0;
+	/** Fixed heading with high frequency shaking */
+	public static final int PROFILE_VIBRATION = 1;
+	/** Still device in disturbed magnetic field */
+	public static final int PROFILE_NOISE = 2;
+
+	public static final int DEFAULT_RATE = 1000;
+
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final int MAX_DRAIN = 512;
+	private static final float GRAVITY = 9.81f;
+	// Field at mid latitudes, uT, world frame: x east, y north, z up
+	private static final float FIELD_NORTH = 22f;
+	private static final float FIELD_UP = -42f;
+
+	private final int profile;
+	private final long period;
+	private final Executor executor;
+	private final SampleQueue queue = new SampleQueue(QUEUE_CAPACITY);
+	private final AtomicBoolean drainPending = new AtomicBoolean();
+	private final Random random = new Random(1);
+	private final float[] vector = new float[3];
+
+	private volatile SampleListener listener;
+	private volatile boolean running;
+	private Thread generator;
+	private volatile long generatedCount;
+	private volatile long deliveredCount;
+
+	/**
+	 * @param rate samples per second for each sensor
+	 * @param executor runs delivery on consumer thread
+	 */
+	public SyntheticSensorSource(int profile, int rate, Executor executor)
+	{
+		this.profile = profile;
+		this.period = 1000000000L / rate;
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void start(SampleListener listener, boolean batching)
+	{
+		if (running)
+			return;
+		this.listener = listener;
+		running = true;
+		generator = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				generate();
+			}
+		}, "SyntheticSensorSource");
+		generator.start();
+	}
+
+	@Override
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		boolean retry = true;
+		while (retry)
+		{
+			try
+			{
+				generator.join();
+				retry = false;
+			}
+			catch (InterruptedException e)
+			{
+			}
+		}
+		generator = null;
+		listener = null;
+	}
+
+	public long getGeneratedCount()
+	{
+		return generatedCount;
+	}
+
+	public long getDeliveredCount()
+	{
+		return deliveredCount;
+	}
+
+	public SampleQueue getQueue()
+	{
+		return queue;
+	}
+
+	private void generate()
+	{
+		long start = System.nanoTime();
+		long n = 0;
+		while (running)
+		{
+			long now = System.nanoTime();
+			boolean offered = false;
+			while (start + n * period <= now)
+			{
+				long time = start + n * period;
+				float t = (time - start) / 1000000000f;
+				offered |= sample(ACCELEROMETER, time, t);
+				offered |= sample(MAGNETIC, time, t);
+				n++;
+			}
+			generatedCount = n * 2;
+			if (offered && !drainPending.getAndSet(true))
+				executor.execute(drain);
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+		}
+	}
+
+	private boolean sample(int sensor, long time, float t)
+	{
+		double yaw, pitch, roll;
+		float shake = 0f, noise;
+		switch (profile)
+		{
+			case PROFILE_VIBRATION:
+				yaw = Math.toRadians(45);
+				pitch = Math.toRadians(2) * Math.sin(2 * Math.PI * 25 * t);
+				roll = Math.toRadians(2) * Math.cos(2 * Math.PI * 25 * t);
+				shake = (float) (2 * Math.sin(2 * Math.PI * 40 * t));
+				noise = sensor == ACCELEROMETER ? 0.05f : 0.3f;
+				break;
+			case PROFILE_NOISE:
+				yaw = Math.toRadians(120);
+				pitch = 0;
+				roll = 0;
+				noise = sensor == ACCELEROMETER ? 0.1f : 3f;
+				break;
+			case PROFILE_ROTATION:
+			default:
+				yaw = Math.toRadians(90) * t;
+				pitch = Math.toRadians(20) * Math.sin(2 * Math.PI * 0.2 * t);
+				roll = Math.toRadians(10) * Math.sin(2 * Math.PI * 0.3 * t);
+				noise = sensor == ACCELEROMETER ? 0.02f : 0.3f;
+				break;
+		}
+
+		if (sensor == ACCELEROMETER)
+		{
+			vector[0] = 0f;
+			vector[1] = 0f;
+			vector[2] = GRAVITY + shake;
+		}
+		else
+		{
+			vector[0] = 0f;
+			vector[1] = FIELD_NORTH;
+			vector[2] = FIELD_UP;
+		}
+		// World to device frame: undo yaw about z, pitch about x, roll about y
+		rotate(vector, 0, 1, -yaw);
+		rotate(vector, 1, 2, -pitch);
+		rotate(vector, 2, 0, -roll);
+
+		return queue.offer(sensor, time,
+				vector[0] + noise * (float) random.nextGaussian(),
+				vector[1] + noise * (float) random.nextGaussian(),
+				vector[2] + noise * (float) random.nextGaussian());
+	}
+
+	private static void rotate(float[] v, int a, int b, double angle)
+	{
+		float c = (float) Math.cos(angle);
+		float s = (float) Math.sin(angle);
+		float va = v[a];
+		float vb = v[b];
+		v[a] = c * va - s * vb;
+		v[b] = s * va + c * vb;
+	}
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run()
+		{
+			drainPending.set(false);
+			SampleListener l = listener;
+			if (l == null)
+			{
+				queue.clear();
+				return;
+			}
+			deliveredCount += queue.drain(l, MAX_DRAIN);
+			// Yield to other tasks of consumer thread between chunks
+			if (queue.size() > 0 && !drainPending.getAndSet(true))
+				executor.execute(this);
+		}
+	};
+}
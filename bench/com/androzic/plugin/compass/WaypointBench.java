@@ -0,0 +1,186 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.Random;
+
+/**
+ * Benchmark of waypoint index against linear scan on synthetic point sets,
+ * runs on plain JVM. Both searches must return the same waypoints, exits
+ * with non-zero status otherwise.
+ *
+ * Usage: WaypointBench [queries]
+ */
+public class WaypointBench
+{
+	private static final int[] SIZES = { 100, 1000, 10000, 100000 };
+	private static final String[] LAYOUTS = { "uniform", "clustered", "track" };
+	private static final int N = 5;
+
+	public static void main(String[] args)
+	{
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		Random random = new Random(1);
+		boolean ok = true;
+
+		System.out.println("layout     waypoints  build ms  tree ns/query  scan ns/query  speedup");
+		for (int layout = 0; layout < LAYOUTS.length; layout++)
+		{
+			for (int size : SIZES)
+			{
+				double[] lat = new double[size];
+				double[] lon = new double[size];
+				generate(layout, lat, lon, random);
+				// Linear scan is slow, query count is limited to keep run time sane
+				int q = Math.max(20, Math.min(queries, 5000000 / size));
+				double[] qlat = new double[q];
+				double[] qlon = new double[q];
+				for (int i = 0; i < q; i++)
+				{
+					// Queries near waypoints, as during navigation
+					int w = random.nextInt(size);
+					qlat[i] = Math.max(-90, Math.min(90, lat[w] + random.nextGaussian() * 0.05));
+					qlon[i] = lon[w] + random.nextGaussian() * 0.05;
+				}
+
+				long start = System.nanoTime();
+				WaypointIndex index = new WaypointIndex(lat, lon);
+				long build = System.nanoTime() - start;
+
+				int[] result = new int[N];
+				double[] treeDistances = new double[q * N];
+				double[] scanDistances = new double[q * N];
+				double[] distances = new double[N];
+
+				// Warm up both paths before timing
+				for (int i = 0; i < q; i++)
+					index.nearest(qlat[i], qlon[i], N, result, distances);
+				for (int i = 0; i < q / 10; i++)
+					scan(lat, lon, qlat[i], qlon[i], result, distances);
+
+				start = System.nanoTime();
+				for (int i = 0; i < q; i++)
+				{
+					index.nearest(qlat[i], qlon[i], N, result, distances);
+					System.arraycopy(distances, 0, treeDistances, i * N, N);
+				}
+				long tree = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < q; i++)
+				{
+					scan(lat, lon, qlat[i], qlon[i], result, distances);
+					System.arraycopy(distances, 0, scanDistances, i * N, N);
+				}
+				long scan = System.nanoTime() - start;
+
+				for (int i = 0; i < q * N; i++)
+				{
+					// Ties may come in any order, distances must match
+					if (Math.abs(treeDistances[i] - scanDistances[i]) > 1e-3)
+					{
+						System.out.println("MISMATCH " + LAYOUTS[layout] + " " + size + " query " + i / N + ": " + treeDistances[i] + " != " + scanDistances[i]);
+						ok = false;
+						break;
+					}
+				}
+
+				System.out.println(String.format("%-10s %9d  %8.1f  %13d  %13d  %7.1f", LAYOUTS[layout], size, build / 1e6, tree / q, scan / q, (double) scan / tree));
+			}
+		}
+		if (!ok)
+			System.exit(1);
+	}
+
+	private static void generate(int layout, double[] lat, double[] lon, Random random)
+	{
+		int size = lat.length;
+		switch (layout)
+		{
+			case 0:
+				for (int i = 0; i < size; i++)
+				{
+					// Uniform over sphere
+					lat[i] = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+					lon[i] = 360 * random.nextDouble() - 180;
+				}
+				break;
+			case 1:
+				double[] clat = new double[10];
+				double[] clon = new double[10];
+				for (int c = 0; c < 10; c++)
+				{
+					clat[c] = 140 * random.nextDouble() - 70;
+					clon[c] = 360 * random.nextDouble() - 180;
+				}
+				for (int i = 0; i < size; i++)
+				{
+					int c = random.nextInt(10);
+					lat[i] = clat[c] + random.nextGaussian() * 0.1;
+					lon[i] = clon[c] + random.nextGaussian() * 0.1;
+				}
+				break;
+			default:
+				// Points along a route crossing the date line
+				double la = 60, lo = 170;
+				for (int i = 0; i < size; i++)
+				{
+					la += random.nextGaussian() * 0.001;
+					lo += 0.0005 + random.nextGaussian() * 0.0002;
+					if (lo > 180)
+						lo -= 360;
+					lat[i] = la;
+					lon[i] = lo;
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Reference search, great circle distance to every waypoint with
+	 * insertion into sorted result.
+	 */
+	private static void scan(double[] lat, double[] lon, double qlat, double qlon, int[] result, double[] distances)
+	{
+		int count = 0;
+		double phi1 = Math.toRadians(qlat);
+		double cosPhi1 = Math.cos(phi1);
+		for (int i = 0; i < lat.length; i++)
+		{
+			double phi2 = Math.toRadians(lat[i]);
+			double sinDPhi = Math.sin((phi2 - phi1) / 2);
+			double sinDLambda = Math.sin(Math.toRadians(lon[i] - qlon) / 2);
+			double h = sinDPhi * sinDPhi + cosPhi1 * Math.cos(phi2) * sinDLambda * sinDLambda;
+			double d = 2 * WaypointIndex.EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+			if (count == N && d >= distances[N - 1])
+				continue;
+			int k = count < N ? count++ : N - 1;
+			while (k > 0 && distances[k - 1] > d)
+			{
+				distances[k] = distances[k - 1];
+				result[k] = result[k - 1];
+				k--;
+			}
+			distances[k] = d;
+			result[k] = i;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Device attitude kept as unit quaternion rotating screen coordinates into
+ * world (east, north, up) coordinates. Per sample update costs three square
+ * roots and no trigonometry, angles are derived lazily and cached until the
+ * next update.
+ */
+public class Attitude
+{
+	private float w = 1;
+	private float x;
+	private float y;
+	private float z;
+
+	// Display rotation about screen normal: cos and sin of half angle
+	private float rotationCos = 1;
+	private float rotationSin = 0;
+	private int displayRotation;
+
+	private boolean anglesValid;
+	private float azimuth;
+	private float pitch;
+	private float roll;
+
+	private long timestamp;
+
+	/**
+	 * Sets display rotation as reported by Display.getRotation().
+	 */
+	public void setDisplayRotation(int rotation)
+	{
+		if (rotation == displayRotation)
+			return;
+		displayRotation = rotation;
+		// Screen axes turn opposite to the display rotation
+		double half = -Math.PI / 4 * rotation;
+		rotationCos = (float) Math.cos(half);
+		rotationSin = (float) Math.sin(half);
+	}
+
+	public int getDisplayRotation()
+	{
+		return displayRotation;
+	}
+
+	/**
+	 * Updates attitude from gravity and geomagnetic vectors in device
+	 * coordinates.
+	 *
+	 * @return false if vectors are degenerate (free fall or close to magnetic pole)
+	 */
+	public boolean update(float ax, float ay, float az, float ex, float ey, float ez, long timestamp)
+	{
+		// East = E x A
+		float hx = ey * az - ez * ay;
+		float hy = ez * ax - ex * az;
+		float hz = ex * ay - ey * ax;
+		float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+		if (normH < 0.1f)
+			return false;
+		float invH = 1.0f / normH;
+		hx *= invH;
+		hy *= invH;
+		hz *= invH;
+		float invA = 1.0f / (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		ax *= invA;
+		ay *= invA;
+		az *= invA;
+		// North = A x East
+		float mx = ay * hz - az * hy;
+		float my = az * hx - ax * hz;
+		float mz = ax * hy - ay * hx;
+
+		// Rows of rotation matrix are east, north and up
+		float qw, qx, qy, qz;
+		float trace = hx + my + az;
+		if (trace > 0)
+		{
+			float s = (float) Math.sqrt(trace + 1) * 2;
+			qw = 0.25f * s;
+			qx = (ay - mz) / s;
+			qy = (hz - ax) / s;
+			qz = (mx - hy) / s;
+		}
+		else if (hx > my && hx > az)
+		{
+			float s = (float) Math.sqrt(1 + hx - my - az) * 2;
+			qw = (ay - mz) / s;
+			qx = 0.25f * s;
+			qy = (hy + mx) / s;
+			qz = (hz + ax) / s;
+		}
+		else if (my > az)
+		{
+			float s = (float) Math.sqrt(1 + my - hx - az) * 2;
+			qw = (hz - ax) / s;
+			qx = (hy + mx) / s;
+			qy = 0.25f * s;
+			qz = (mz + ay) / s;
+		}
+		else
+		{
+			float s = (float) Math.sqrt(1 + az - hx - my) * 2;
+			qw = (mx - hy) / s;
+			qx = (hz + ax) / s;
+			qy = (mz + ay) / s;
+			qz = 0.25f * s;
+		}
+
+		// Rotate device frame into screen frame
+		w = qw * rotationCos - qz * rotationSin;
+		x = qx * rotationCos + qy * rotationSin;
+		y = qy * rotationCos - qx * rotationSin;
+		z = qz * rotationCos + qw * rotationSin;
+
+		this.timestamp = timestamp;
+		anglesValid = false;
+		return true;
+	}
+
+	public void set(Attitude other)
+	{
+		w = other.w;
+		x = other.x;
+		y = other.y;
+		z = other.z;
+		timestamp = other.timestamp;
+		anglesValid = false;
+	}
+
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * Returns tilt compensated azimuth in degrees, 0 to 360. Heading follows
+	 * the screen top when device is flat and blends towards the back camera
+	 * direction as it is raised upright, so it has no singularity at 90 degrees
+	 * pitch.
+	 */
+	public float getAzimuth()
+	{
+		computeAngles();
+		return azimuth;
+	}
+
+	/**
+	 * Returns pitch in degrees, same convention as SensorManager.getOrientation().
+	 */
+	public float getPitch()
+	{
+		computeAngles();
+		return pitch;
+	}
+
+	/**
+	 * Returns roll in degrees, same convention as SensorManager.getOrientation().
+	 */
+	public float getRoll()
+	{
+		computeAngles();
+		return roll;
+	}
+
+	private void computeAngles()
+	{
+		if (anglesValid)
+			return;
+
+		float xx = x * x, yy = y * y, zz = z * z;
+		float xy = x * y, xz = x * z, yz = y * z;
+		float wx = w * x, wy = w * y, wz = w * z;
+
+		float m01 = 2 * (xy - wz);
+		float m11 = 1 - 2 * (xx + zz);
+		float m21 = 2 * (yz + wx);
+		float m02 = 2 * (xz + wy);
+		float m12 = 2 * (yz - wx);
+		float m20 = 2 * (xz - wy);
+		float m22 = 1 - 2 * (xx + yy);
+
+		// Screen top blended with back direction, weighted by its elevation
+		float east = m01 - m21 * m02;
+		float north = m11 - m21 * m12;
+		azimuth = HeadingMath.atan2(east, north);
+		if (azimuth < 0)
+			azimuth += 360;
+
+		pitch = HeadingMath.asin(-m21);
+		roll = HeadingMath.atan2(-m20, m22);
+
+		anglesValid = true;
+	}
+}
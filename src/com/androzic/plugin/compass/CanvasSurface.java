@@ -0,0 +1,190 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Paint.Style;
+import android.graphics.Typeface;
+
+/**
+ * Draw surface backed by Android canvas. Owns paints of the dial and
+ * waypoint overlay, bitmaps are provided by the owner.
+ */
+public class CanvasSurface implements DrawSurface
+{
+	private Canvas canvas;
+	private final Paint[] paints = new Paint[PAINT_COUNT];
+	private final Paint[] bitmapPaints = new Paint[BITMAP_COUNT];
+	private final Bitmap[] bitmaps = new Bitmap[BITMAP_COUNT];
+	private final Matrix matrix = new Matrix();
+
+	public CanvasSurface()
+	{
+		Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		borderPaint.setStyle(Style.STROKE);
+		borderPaint.setColor(Color.DKGRAY);
+		borderPaint.setStrokeWidth(DialRenderer.BORDER_WIDTH);
+		Paint scalePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		scalePaint.setStyle(Style.FILL);
+		scalePaint.setColor(Color.LTGRAY);
+		scalePaint.setStrokeWidth(1);
+		Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
+		textPaint.setAntiAlias(true);
+		textPaint.setStrokeWidth(1);
+		textPaint.setStyle(Paint.Style.FILL);
+		textPaint.setTextAlign(Align.CENTER);
+		textPaint.setTextSize(35);
+		textPaint.setTypeface(Typeface.DEFAULT);
+		textPaint.setColor(Color.LTGRAY);
+		Paint readoutPaint = new Paint(textPaint);
+		readoutPaint.setTextAlign(Align.LEFT);
+		readoutPaint.setColor(Color.WHITE);
+		Paint markerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		markerPaint.setStyle(Style.FILL);
+		markerPaint.setColor(Color.rgb(0, 160, 255));
+		Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
+		labelPaint.setStyle(Style.FILL);
+		labelPaint.setTextAlign(Align.CENTER);
+		labelPaint.setColor(Color.rgb(0, 160, 255));
+
+		paints[PAINT_BORDER] = borderPaint;
+		paints[PAINT_SCALE] = scalePaint;
+		paints[PAINT_LABEL] = textPaint;
+		paints[PAINT_READOUT] = readoutPaint;
+		paints[PAINT_MARKER] = markerPaint;
+		paints[PAINT_MARKER_LABEL] = labelPaint;
+
+		// Face texture is drawn scaled and in perspective, unfiltered it shimmers
+		bitmapPaints[BITMAP_FACE] = new Paint(Paint.FILTER_BITMAP_FLAG);
+	}
+
+	public void setCanvas(Canvas canvas)
+	{
+		this.canvas = canvas;
+	}
+
+	public void setBitmap(int id, Bitmap bitmap)
+	{
+		bitmaps[id] = bitmap;
+	}
+
+	@Override
+	public void save()
+	{
+		canvas.save();
+	}
+
+	@Override
+	public void restore()
+	{
+		canvas.restore();
+	}
+
+	@Override
+	public void translate(float dx, float dy)
+	{
+		canvas.translate(dx, dy);
+	}
+
+	@Override
+	public void scale(float sx, float sy)
+	{
+		canvas.scale(sx, sy);
+	}
+
+	@Override
+	public void rotate(float degrees)
+	{
+		canvas.rotate(degrees);
+	}
+
+	@Override
+	public void concat(float[] values)
+	{
+		matrix.setValues(values);
+		canvas.concat(matrix);
+	}
+
+	@Override
+	public void drawColor(int color)
+	{
+		canvas.drawColor(color);
+	}
+
+	@Override
+	public void drawCircle(float cx, float cy, float radius, int paint)
+	{
+		canvas.drawCircle(cx, cy, radius, paints[paint]);
+	}
+
+	@Override
+	public void drawRect(float left, float top, float right, float bottom, int paint)
+	{
+		canvas.drawRect(left, top, right, bottom, paints[paint]);
+	}
+
+	@Override
+	public void drawText(String text, float x, float y, int paint)
+	{
+		canvas.drawText(text, x, y, paints[paint]);
+	}
+
+	@Override
+	public void drawText(char[] text, int index, int count, float x, float y, int paint)
+	{
+		canvas.drawText(text, index, count, x, y, paints[paint]);
+	}
+
+	@Override
+	public void drawBitmap(int bitmap, float left, float top)
+	{
+		canvas.drawBitmap(bitmaps[bitmap], left, top, bitmapPaints[bitmap]);
+	}
+
+	@Override
+	public int getBitmapWidth(int bitmap)
+	{
+		return bitmaps[bitmap].getWidth();
+	}
+
+	@Override
+	public int getBitmapHeight(int bitmap)
+	{
+		return bitmaps[bitmap].getHeight();
+	}
+
+	@Override
+	public void setTextSize(int paint, float size)
+	{
+		paints[paint].setTextSize(size);
+	}
+
+	@Override
+	public void getTextWidths(char[] text, int index, int count, int paint, float[] widths)
+	{
+		paints[paint].getTextWidths(text, index, count, widths);
+	}
+}
@@ -20,48 +20,52 @@
 
 package com.androzic.plugin.compass;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.hardware.GeomagneticField;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.view.Display;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
-import android.view.Surface;
 import android.view.WindowManager;
 import android.widget.Toast;
 
-public class CompassActivity extends Activity implements SensorEventListener, OnSharedPreferenceChangeListener
+public class CompassActivity extends Activity implements LocationListener, OnSharedPreferenceChangeListener
 {
-	private SensorManager sensorManager = null;
-
-	private float[] magneticValues;
-	private float[] accelerometerValues;
-
-	private float[] matrixR;
-	private float[] matrixI;
-	private float[] matrixValues;
-	private float[] matrixRemappedR;
-
-	private int x;
-	private int y;
+	public static final String ACTION_WAYPOINTS = "com.androzic.plugins.action.WAYPOINTS";
+	public static final String EXTRA_NAMES = "names";
+	public static final String EXTRA_LATITUDES = "latitudes";
+	public static final String EXTRA_LONGITUDES = "longitudes";
+	/** Optional current position from host, used until own fix arrives */
+	public static final String EXTRA_LATITUDE = "latitude";
+	public static final String EXTRA_LONGITUDE = "longitude";
+	/** Signature permission required from waypoint broadcast sender */
+	public static final String PERMISSION_WAYPOINTS = "com.androzic.plugin.compass.permission.WAYPOINTS";
 
-	private float azimuth = 0.0f;
-	private float pitch = 0.0f;
-	private float roll = 0.0f;
+	private RetainedPipeline pipeline;
+	private boolean retaining;
 
 	private CompassView compassView;
+	private WaypointOverlay waypointOverlay;
+	private LocationManager locationManager;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState)
@@ -70,141 +74,171 @@ public class CompassActivity extends Activity implements SensorEventListener, On
 		getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 		setContentView(R.layout.act_compass);
 
-		matrixR = new float[9];
-		matrixI = new float[9];
-		matrixValues = new float[3];
-		matrixRemappedR = new float[9];
-
-		x = SensorManager.AXIS_X;
-		y = SensorManager.AXIS_Y;
-
 		compassView = (CompassView) findViewById(R.id.compass);
 
+		// Sensors, render thread and decoded needle are kept running across rotation
+		pipeline = (RetainedPipeline) getLastNonConfigurationInstance();
+
+		// Needle animation is continued only after configuration change, after
+		// process restart its time base is unrelated
 		if (savedInstanceState != null)
-			compassView.restoreState(savedInstanceState);
+			compassView.restoreState(savedInstanceState, pipeline != null);
+		if (pipeline == null)
+			pipeline = new RetainedPipeline(this);
+		else
+			compassView.measureFirstFrame(pipeline.getConfigurationChangeStart());
 
-		sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-		if (sensorManager != null)
-		{
-			Sensor acc = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-			Sensor mag = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-			if (acc != null && mag != null)
-			{
-				sensorManager.registerListener(this, acc, SensorManager.SENSOR_DELAY_UI);
-				sensorManager.registerListener(this, mag, SensorManager.SENSOR_DELAY_UI);
-			}
-		}
+		waypointOverlay = pipeline.getWaypointOverlay();
+		setWaypoints(getIntent());
+		compassView.setWaypointOverlay(waypointOverlay);
+		registerReceiver(waypointReceiver, new IntentFilter(ACTION_WAYPOINTS), PERMISSION_WAYPOINTS, null);
 
 		SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 		sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_log));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_nmea));
 	}
 
 	@Override
 	protected void onResume()
 	{
 		super.onResume();
-		Display display = ((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-		switch (display.getOrientation())
+		pipeline.getHeadingProvider().updateDisplayRotation();
+
+		locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+		if (locationManager != null)
 		{
-			case Surface.ROTATION_0:
-				x = SensorManager.AXIS_X;
-				y = SensorManager.AXIS_Y;
-				break;
-			case Surface.ROTATION_90:
-				x = SensorManager.AXIS_Y;
-				y = SensorManager.AXIS_MINUS_X;
-				break;
-			case Surface.ROTATION_180:
-				x = SensorManager.AXIS_X;
-				y = SensorManager.AXIS_MINUS_Y;
-				break;
-			case Surface.ROTATION_270:
-				x = SensorManager.AXIS_MINUS_Y;
-				y = SensorManager.AXIS_MINUS_X;
-				break;
+			try
+			{
+				Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+				if (location != null)
+					onLocationChanged(location);
+				locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 5, this);
+			}
+			catch (IllegalArgumentException e)
+			{
+				// No GPS on device
+				locationManager = null;
+			}
+			catch (SecurityException e)
+			{
+				// Location permission is not granted, markers rely on host position
+				locationManager = null;
+			}
 		}
 
 		SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_smooth));
 		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_rotateface));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_tilt));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_fastmath));
 		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_disableorientation));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_batching));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_waypoints));
 	}
 
 	@Override
 	protected void onPause()
 	{
 		super.onPause();
+		if (locationManager != null)
+		{
+			locationManager.removeUpdates(this);
+			locationManager = null;
+		}
 	}
 
 	@Override
 	public void onDestroy()
 	{
 		super.onDestroy();
-		if (sensorManager != null)
-		{
-			sensorManager.unregisterListener(this);
-			sensorManager = null;
-		}
+		unregisterReceiver(waypointReceiver);
+		PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
+		if (!retaining)
+			pipeline.release();
+		pipeline = null;
 	}
 
 	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy)
+	public Object onRetainNonConfigurationInstance()
 	{
+		retaining = true;
+		pipeline.setConfigurationChangeStart(SystemClock.uptimeMillis());
+		return pipeline;
 	}
 
 	@Override
-	public void onSensorChanged(SensorEvent event)
+	public void onLocationChanged(Location location)
 	{
-		if (event.accuracy == SensorManager.SENSOR_STATUS_UNRELIABLE)
-			return;
-
-		switch (event.sensor.getType())
-		{
-			case Sensor.TYPE_MAGNETIC_FIELD:
-				magneticValues = event.values.clone();
-				break;
-			case Sensor.TYPE_ACCELEROMETER:
-				accelerometerValues = event.values.clone();
-				break;
-		}
+		GeomagneticField field = new GeomagneticField((float) location.getLatitude(), (float) location.getLongitude(), (float) location.getAltitude(), location.getTime());
+		// Markers are drawn against magnetic needle
+		waypointOverlay.setPosition(location.getLatitude(), location.getLongitude(), field.getDeclination());
+		MagneticSurvey survey = pipeline.getSurvey();
+		if (survey != null)
+			survey.setLocation(location);
+		NmeaServer nmeaServer = pipeline.getNmeaServer();
+		if (nmeaServer != null)
+			nmeaServer.setVariation(field.getDeclination());
+	}
 
-		if (magneticValues != null && accelerometerValues != null)
-		{
-			if (SensorManager.getRotationMatrix(matrixR, matrixI, accelerometerValues, magneticValues))
-			{
-				if (SensorManager.remapCoordinateSystem(matrixR, x, y, matrixRemappedR))
-				{
-					SensorManager.getOrientation(matrixRemappedR, matrixValues);
+	@Override
+	public void onProviderDisabled(String provider)
+	{
+	}
 
-					azimuth = (float) Math.toDegrees(matrixValues[0]);
-					pitch = (float) Math.toDegrees(matrixValues[1]);
-					roll = (float) Math.toDegrees(matrixValues[2]);
+	@Override
+	public void onProviderEnabled(String provider)
+	{
+	}
 
-					// Sometimes azimuth becomes negative
-					if (azimuth < 0)
-						azimuth += 360.;
-					while (azimuth > 360.)
-						azimuth -= 360.;
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras)
+	{
+	}
 
-					CompassView.CompassThread thread = compassView.getThread();
-					if (thread != null)
-					{
-						thread.setAzimuth(azimuth);
-						thread.setPitch(pitch);
-					}
-				}
-			}
+	private void setWaypoints(Intent intent)
+	{
+		double[] latitudes = intent.getDoubleArrayExtra(EXTRA_LATITUDES);
+		double[] longitudes = intent.getDoubleArrayExtra(EXTRA_LONGITUDES);
+		if (latitudes != null && longitudes != null)
+			waypointOverlay.setWaypoints(intent.getStringArrayExtra(EXTRA_NAMES), latitudes, longitudes);
+		if (intent.hasExtra(EXTRA_LATITUDE) && intent.hasExtra(EXTRA_LONGITUDE))
+		{
+			double latitude = intent.getDoubleExtra(EXTRA_LATITUDE, 0);
+			double longitude = intent.getDoubleExtra(EXTRA_LONGITUDE, 0);
+			GeomagneticField field = new GeomagneticField((float) latitude, (float) longitude, 0f, System.currentTimeMillis());
+			waypointOverlay.setPosition(latitude, longitude, field.getDeclination());
 		}
 	}
 
+	private final BroadcastReceiver waypointReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			setWaypoints(intent);
+		}
+	};
+
 	@Override
 	public boolean onCreateOptionsMenu(final Menu menu)
 	{
 		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.coursehold, menu);
+		inflater.inflate(R.menu.survey, menu);
 		inflater.inflate(R.menu.preferences, menu);
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(final Menu menu)
+	{
+		boolean surveying = pipeline.getSurvey() != null;
+		menu.findItem(R.id.menuSurvey).setChecked(surveying);
+		menu.findItem(R.id.menuSurveyExport).setVisible(surveying);
+		menu.findItem(R.id.menuHoldCourse).setChecked(CourseHoldService.isRunning());
+		return true;
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(final MenuItem item)
 	{
@@ -213,10 +247,76 @@ public class CompassActivity extends Activity implements SensorEventListener, On
 			case R.id.menuPreferences:
 				startActivity(new Intent(this, Preferences.class));
 				return true;
+			case R.id.menuHoldCourse:
+				if (item.isChecked())
+					stopService(new Intent(this, CourseHoldService.class));
+				else
+					startService(new Intent(this, CourseHoldService.class));
+				return true;
+			case R.id.menuDiagnostics:
+				startActivity(new Intent(this, DiagnosticsActivity.class));
+				return true;
+			case R.id.menuSurvey:
+				try
+				{
+					pipeline.setSurvey(!item.isChecked());
+					if (pipeline.getSurvey() != null && locationManager != null)
+					{
+						Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+						if (location != null)
+							pipeline.getSurvey().setLocation(location);
+					}
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+				}
+				return true;
+			case R.id.menuSurveyExport:
+				exportSurvey();
+				return true;
 		}
 		return false;
 	}
 
+	private void exportSurvey()
+	{
+		final MagneticSurvey survey = pipeline.getSurvey();
+		if (survey == null)
+			return;
+		final Context context = getApplicationContext();
+		final File directory = new File(Environment.getExternalStorageDirectory(), "Androzic");
+		final File file = new File(directory, "survey_" + System.currentTimeMillis() / 1000 + ".png");
+		// Reading flushed tiles and compressing image takes seconds on large surveys
+		new AsyncTask<Void, Void, String>() {
+			@Override
+			protected String doInBackground(Void... params)
+			{
+				try
+				{
+					if (!directory.isDirectory() && !directory.mkdirs())
+						throw new IOException("Can not create directory: " + directory);
+					if (survey.exportHeatMap(file, MagneticSurvey.CHANNEL_MAGNITUDE))
+						return context.getString(R.string.msg_surveyexported, file.getAbsolutePath());
+					else
+						return context.getString(R.string.msg_surveyempty);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					return e.getMessage();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(String message)
+			{
+				Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+			}
+		}.execute();
+	}
+
 	@Override
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
 	{
@@ -228,6 +328,14 @@ public class CompassActivity extends Activity implements SensorEventListener, On
 		{
 			compassView.setFaceRotation(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_rotateface)));
 		}
+		if (key.equals(getString(R.string.pref_compass_tilt)))
+		{
+			compassView.setTilt(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_tilt)));
+		}
+		if (key.equals(getString(R.string.pref_compass_fastmath)))
+		{
+			compassView.setFastMath(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_fastmath)));
+		}
 		if (key.equals(getString(R.string.pref_compass_disableorientation)))
 		{
 			if (sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_disableorientation)))
@@ -235,6 +343,46 @@ public class CompassActivity extends Activity implements SensorEventListener, On
 			else
 				setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_SENSOR);
 		}
+		if (key.equals(getString(R.string.pref_compass_waypoints)))
+		{
+			waypointOverlay.setMaxCount(Integer.parseInt(sharedPreferences.getString(key, getString(R.string.def_waypoints))));
+		}
+		if (key.equals(getString(R.string.pref_compass_batching)))
+		{
+			pipeline.getHeadingProvider().setBatching(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_batching)));
+		}
+		if (key.equals(getString(R.string.pref_compass_log)))
+		{
+			try
+			{
+				pipeline.setLogging(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_log)));
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+			}
+		}
+		if (key.equals(getString(R.string.pref_compass_nmea)) || key.equals(getString(R.string.pref_compass_nmearate)) || key.equals(getString(R.string.pref_compass_nmeanetwork)))
+		{
+			boolean enabled = sharedPreferences.getBoolean(getString(R.string.pref_compass_nmea), getResources().getBoolean(R.bool.def_nmea));
+			int rate = Integer.parseInt(sharedPreferences.getString(getString(R.string.pref_compass_nmearate), getString(R.string.def_nmearate)));
+			boolean network = sharedPreferences.getBoolean(getString(R.string.pref_compass_nmeanetwork), getResources().getBoolean(R.bool.def_nmeanetwork));
+			NmeaServer nmeaServer = pipeline.getNmeaServer();
+			// Server is kept across rotation
+			if (enabled != (nmeaServer != null) || !key.equals(getString(R.string.pref_compass_nmea)))
+			{
+				try
+				{
+					pipeline.setNmeaOutput(enabled, rate, network);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+				}
+			}
+		}
 		if (key.equals(getString(R.string.pref_compass_disablelauncher)))
 		{
 			boolean disable = sharedPreferences.getBoolean(key, false);
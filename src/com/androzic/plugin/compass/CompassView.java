@@ -1,19 +1,19 @@
 /*
  * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
- * Copyright (C) 2010-2012 Andrey Novikov <http://andreynovikov.info/>
- * 
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
  * This file is part of Androzic application.
- * 
+ *
  * Androzic is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- * 
+ *
  * Androzic is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
  * GNU General Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU General Public License
  * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
  */
@@ -22,108 +22,63 @@ package com.androzic.plugin.compass;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Align;
-import android.graphics.Paint.Style;
-import android.graphics.RectF;
-import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import com.androzic.library.R;
-import com.androzic.util.easing.Easing;
-import com.androzic.util.easing.QuinticInOut;
 
-public class CompassView extends SurfaceView implements SurfaceHolder.Callback
+public class CompassView extends SurfaceView implements SurfaceHolder.Callback, HeadingProvider.OnHeadingChangedListener
 {
-	/** The thread that actually draws the animation */
-	private CompassThread thread;
-	
-	private boolean isSmooth;
-	private boolean rotateFace;
-	
-	private float azimuth;
-	private float pitch;
-
-	class CompassThread extends Thread
+	private static final String TAG = "CompassView";
+	private static final int REPORT_FRAMES = 1000;
+
+	/** The dial state and drawing, driven by shared render thread */
+	private CompassDial dial;
+
+	private volatile long firstFrameStart;
+
+	class CompassDial implements RenderScheduler.Renderer
 	{
-		private static final float INSTRUMENTAL_ERROR = 1.f;
-		private static final float NEEDLE_PRECISION = 0.01f;
-		private static final long AZIMUTH_ANIMATION_DURATION = 4000;
-		private static final long PITCH_ANIMATION_DURATION = 10000;
-
-		private Bitmap compassArrow;
-
-		private Paint borderPaint;
-		private Paint scalePaint;
-		private Paint textPaint;
-		private RectF rect30;
-		private RectF rect10;
-		private RectF rect5;
-
-		private Easing animation;
-
-		private long azimuthAnimationStart;
-		private float azimuthAnimationDuration;
-		private float azimuthAnimationReference;
-		private float azimuthRealTime;
-		private float azimuthTurn;
-
-		private long pitchAnimationStart;
-		private float pitchAnimationDuration;
-		private float pitchAnimationReference;
-		private float pitchRealTime;
-		private float pitchTurn;
+		private final DialRenderer renderer = new DialRenderer();
+		private final CanvasSurface canvasSurface = new CanvasSurface();
+		private final FrameStats stats = new FrameStats();
+		private final RecordingSurface surface = new RecordingSurface(canvasSurface, stats);
+		// Frame number of last over budget warning, -1 if none yet
+		private long overBudgetReported = -1;
+
+		private boolean tilt;
+		// Dial face pre-rendered for tilted drawing
+		private Bitmap faceTexture;
 
 		/** Handle to the surface manager object we interact with */
 		private SurfaceHolder surfaceHolder;
 		/** Indicate whether the surface has been created & is ready to draw */
-		private boolean mRun = false;
+		private volatile boolean attached = false;
+		/**
+		 * Held from canvas lock till post, detach waits on it. Dial state has
+		 * its own lock, so that sensor updates do not wait for vsync.
+		 */
+		private final Object frameLock = new Object();
 
-		private int compassWidth = 220;
-		private float scale = 1;
 		private int canvasWidth;
-		private int canvasHeight;
 
-		public CompassThread(SurfaceHolder surfaceHolder)
+		public CompassDial(SurfaceHolder surfaceHolder)
 		{
 			// get handles to some important objects
 			this.surfaceHolder = surfaceHolder;
-
-			borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-			borderPaint.setStyle(Style.STROKE);
-			borderPaint.setColor(Color.DKGRAY);
-			borderPaint.setStrokeWidth(5);
-			scalePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-			scalePaint.setStyle(Style.FILL);
-			scalePaint.setColor(Color.LTGRAY);
-			scalePaint.setStrokeWidth(1);
-			textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
-			textPaint.setAntiAlias(true);
-			textPaint.setStrokeWidth(1);
-			textPaint.setStyle(Paint.Style.FILL);
-			textPaint.setTextAlign(Align.CENTER);
-			textPaint.setTextSize(35);
-			textPaint.setTypeface(Typeface.DEFAULT);
-			textPaint.setColor(Color.LTGRAY);
-
-			compassArrow = BitmapFactory.decodeResource(getResources(), R.drawable.compass_needle);
-
-			azimuthRealTime = 0;
-			pitchRealTime = 0;
-			animation = new QuinticInOut();
 		}
 
 		public void setSmothing(boolean smoothing)
 		{
 			synchronized (surfaceHolder)
 			{
-				isSmooth = smoothing;
+				renderer.setSmoothing(smoothing);
 			}
 		}
 
@@ -131,7 +86,45 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 		{
 			synchronized (surfaceHolder)
 			{
-				CompassView.this.rotateFace = rotateFace;
+				renderer.setFaceRotation(rotateFace);
+			}
+		}
+
+		public void setTilt(boolean tilt)
+		{
+			synchronized (surfaceHolder)
+			{
+				this.tilt = tilt;
+				if (tilt && faceTexture == null && canvasWidth > 0)
+					renderFace();
+				else if (!tilt)
+					releaseFace();
+				// Logged average then compares texture and per-tick drawing
+				stats.resetAverage();
+			}
+		}
+
+		public void setTableEasing(boolean table)
+		{
+			synchronized (surfaceHolder)
+			{
+				renderer.setTableEasing(table);
+			}
+		}
+
+		public void setWaypointOverlay(WaypointOverlay overlay)
+		{
+			synchronized (surfaceHolder)
+			{
+				renderer.setWaypointOverlay(overlay);
+			}
+		}
+
+		public void setRoll(float roll)
+		{
+			synchronized (surfaceHolder)
+			{
+				renderer.setRoll(roll);
 			}
 		}
 
@@ -139,15 +132,7 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 		{
 			synchronized (surfaceHolder)
 			{
-				if (Math.abs(azimuth - azimuthRealTime) < INSTRUMENTAL_ERROR)
-					return;
-	
-				CompassView.this.azimuth = azimuth;
-	
-				if (isSmooth)
-					calcAzimuthRotation();
-				else
-					azimuthRealTime = azimuth;
+				renderer.setAzimuth(azimuth);
 			}
 		}
 
@@ -155,50 +140,67 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 		{
 			synchronized (surfaceHolder)
 			{
-				if (Math.abs(pitch - pitchRealTime) < INSTRUMENTAL_ERROR)
-					return;
-	
-				CompassView.this.pitch = pitch;
-	
-				if (isSmooth)
-					calcPitchRotation();
-				else
-					pitchRealTime = pitch;
+				renderer.setPitch(pitch);
+			}
+		}
+
+		/**
+		 * Binds dial to created surface and acquires shared resources.
+		 */
+		public void attach()
+		{
+			synchronized (surfaceHolder)
+			{
+				canvasSurface.setBitmap(DrawSurface.BITMAP_NEEDLE, SharedBitmaps.acquire(getResources(), R.drawable.compass_needle));
+				attached = true;
 			}
 		}
 
 		/**
-		 * Used to signal the thread whether it should be running or not.
-		 * Passing true allows the thread to run; passing false will shut it
-		 * down if it's already running. Calling start() after this was most
-		 * recently called with false will result in an immediate shutdown.
-		 * 
-		 * @param b
-		 *            true to run, false to shut down
+		 * Unbinds dial from surface. Waits for the frame in progress, after
+		 * this method returns surface is never touched again, even if render
+		 * loop still holds the dial.
 		 */
-		public void setRunning(boolean b)
+		public void detach()
 		{
-			mRun = b;
+			synchronized (frameLock)
+			{
+				synchronized (surfaceHolder)
+				{
+					attached = false;
+					canvasSurface.setBitmap(DrawSurface.BITMAP_NEEDLE, null);
+					SharedBitmaps.release(R.drawable.compass_needle);
+					releaseFace();
+				}
+			}
 		}
 
 		@Override
-		public void run()
+		public boolean render()
 		{
-			while (mRun)
+			boolean overBudget = false;
+			synchronized (frameLock)
 			{
+				if (!attached)
+					return false;
+
 				Canvas c = null;
 				try
 				{
+					// Canvas is locked outside of state lock, it waits for vsync
+					// and would stall sensor updates
 					c = surfaceHolder.lockCanvas(null);
 					synchronized (surfaceHolder)
 					{
-						if (isSmooth)
-						{
-							calcAzimuthRotation();
-							calcPitchRotation();
-						}
-						if (c != null)
-							doDraw(c);
+						renderer.animate();
+						if (c == null)
+							return false;
+
+						canvasSurface.setCanvas(c);
+						stats.begin(Debug.threadCpuTimeNanos());
+						renderer.draw(surface);
+						overBudget = stats.end(Debug.threadCpuTimeNanos());
+						canvasSurface.setCanvas(null);
 					}
 				}
 				finally
@@ -212,6 +214,20 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 					}
 				}
 			}
+			if (firstFrameStart > 0)
+			{
+				Log.d(TAG, "First frame drawn in " + (SystemClock.uptimeMillis() - firstFrameStart) + " ms after configuration change");
+				firstFrameStart = 0;
+			}
+			// Over budget frames tend to come in series, warn once per report period
+			if (overBudget && (overBudgetReported < 0 || stats.getFrameCount() - overBudgetReported >= REPORT_FRAMES))
+			{
+				Log.w(TAG, "Frame over budget: " + stats);
+				overBudgetReported = stats.getFrameCount();
+			}
+			if (stats.getFrameCount() % REPORT_FRAMES == 0)
+				Log.d(TAG, "View " + Integer.toHexString(getId()) + ": " + stats.getFrameCount() + " frames, avg cpu " + stats.getAverageCpuTime() / 1000 + " us, over budget " + stats.getOverBudgetFrameCount());
+			return true;
 		}
 
 		/* Callback invoked when the surface dimensions change. */
@@ -221,237 +237,71 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 			synchronized (surfaceHolder)
 			{
 				canvasWidth = width;
-				canvasHeight = height;
-
-				if (width > height)
-				{
-					compassWidth = height / 2 - 20;
-				}
-				else
-				{
-					compassWidth = width / 2 - 20;
-				}
-				scale = compassWidth / 220.0f;
-
-				textPaint.setTextSize(35 * scale);
-
-				rect30 = new RectF(-5, compassWidth, +5, compassWidth - 45 * scale);
-				rect10 = new RectF(-2, compassWidth, +2, compassWidth - 30 * scale);
-				rect5 = new RectF(-2, compassWidth, +2, compassWidth - 20 * scale);
+				renderer.setSize(width, height, surface);
 
+				releaseFace();
+				if (tilt)
+					renderFace();
 			}
 		}
 
 		/**
-		 * Draws the ship, fuel/speed bars, and background to the provided
-		 * Canvas.
+		 * Draws static part of the dial into texture.
 		 */
-		private void doDraw(Canvas canvas)
+		private void renderFace()
 		{
-			canvas.drawRGB(0, 0, 0);
-
-			canvas.translate(canvasWidth / 2, canvasHeight / 2);
-			canvas.scale(1, (90 - Math.abs(pitchRealTime)) / 90);
-			canvas.drawCircle(0, 0, compassWidth + 10 * scale, borderPaint);
-
-			if (rotateFace)
-				canvas.rotate(-azimuthRealTime);
-
-			// scale
-			for (int i = 72; i > 0; i--)
-			{
-				if (i % 2 == 1)
-					canvas.drawRect(rect5, scalePaint);
-				if (i % 6 == 0)
-				{
-					canvas.drawRect(rect30, scalePaint);
-					if (i % 18 == 0)
-					{
-						String cd = i == 72 ? "N" : i == 54 ? "E" : i == 36 ? "S" : "W";
-						canvas.drawText(cd, 0, -compassWidth + 80 * scale, textPaint);
-					}
-					else
-					{
-						canvas.drawText(Integer.toString((72 - i) / 2), 0, -compassWidth + 80 * scale, textPaint);
-					}
-				}
-				else if (i % 2 == 0)
-				{
-					canvas.drawRect(rect10, scalePaint);
-				}
-				canvas.rotate(5);
-			}
-
-			if (!rotateFace)
-				canvas.rotate(-azimuthRealTime);
-
-			canvas.drawBitmap(compassArrow, -compassArrow.getWidth() / 2, -compassArrow.getHeight() / 2, null);
+			int size = renderer.getFaceTextureSize();
+			faceTexture = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+			canvasSurface.setCanvas(new Canvas(faceTexture));
+			canvasSurface.translate(size / 2f, size / 2f);
+			renderer.drawFace(canvasSurface);
+			canvasSurface.setCanvas(null);
+			canvasSurface.setBitmap(DrawSurface.BITMAP_FACE, faceTexture);
+			renderer.setFaceTexture(true);
 		}
 
-		private void calcAzimuthRotation()
+		private void releaseFace()
 		{
-			if (azimuth == azimuthRealTime)
-				return;
-
-			float t = azimuth - azimuthRealTime;
-			float absT = Math.abs(t);
-
-			if (absT < NEEDLE_PRECISION)
-			{
-				azimuthRealTime = azimuth;
-				azimuthAnimationStart = 0;
-				postInvalidate();
-				return;
-			}
-
-			if (absT > 180)
+			if (faceTexture != null)
 			{
-				t = t - Math.signum(t) * 360;
-				absT = Math.abs(t);
+				renderer.setFaceTexture(false);
+				canvasSurface.setBitmap(DrawSurface.BITMAP_FACE, null);
+				faceTexture.recycle();
+				faceTexture = null;
 			}
-
-			long sysTime = (long) (System.nanoTime() * 10E-6);
-			float time = sysTime - azimuthAnimationStart;
-
-			// We were not moving
-			if (azimuthAnimationStart == 0)
-			{
-				time = 0;
-				azimuthAnimationStart = sysTime;
-				azimuthAnimationDuration = AZIMUTH_ANIMATION_DURATION;
-				azimuthTurn = t;
-				azimuthAnimationReference = azimuthRealTime;
-			}
-			// We need to change direction
-			else if (Math.signum(t) != Math.signum(azimuthTurn))
-			{
-				// We are accelerating
-				if (time < azimuthAnimationDuration / 2)
-				{
-					// Start deceleration
-					float tt = time;
-					time = azimuthAnimationDuration - time;
-					azimuthTurn *= time / azimuthAnimationDuration;
-					azimuthAnimationDuration = tt;
-					azimuthAnimationStart = (long) (sysTime - time);
-					azimuthAnimationReference = azimuthRealTime;
-				}
-				// We were decelerating
-				else if (time > azimuthAnimationDuration)
-				{
-					azimuthAnimationStart = 0;
-					calcAzimuthRotation();
-					return;
-				}
-			}
-			else
-			{
-				float t2 = azimuth - azimuthAnimationReference;
-				if (Math.abs(t2) > 180)
-					t2 = t2 - Math.signum(t2) * 360;
-				float r = t2 / azimuthTurn;
-
-				if (r > 1.)
-				{
-					azimuthTurn = t2;
-				}
-			}
-
-			if (time > azimuthAnimationDuration)
-				time = azimuthAnimationDuration;
-
-			if (Math.abs(azimuthTurn) > NEEDLE_PRECISION)
-				azimuthRealTime = animation.ease(time, azimuthAnimationReference, azimuthTurn, azimuthAnimationDuration);
-			if (azimuthRealTime < 0)
-			{
-				azimuthRealTime += 360.;
-				azimuthAnimationReference += 360.;
-			}
-			else if (azimuthRealTime >= 360.)
-			{
-				azimuthRealTime -= 360.;
-				azimuthAnimationReference -= 360.;
-			}
-			if (time >= azimuthAnimationDuration)
-				azimuthAnimationStart = 0;
 		}
 
-		private void calcPitchRotation()
+		void saveState(Bundle map)
 		{
-			if (pitch == pitchRealTime)
-				return;
-
-			float t = pitch - pitchRealTime;
-			float absT = Math.abs(t);
-
-			if (absT < NEEDLE_PRECISION)
-			{
-				pitchRealTime = pitch;
-				pitchAnimationStart = 0;
-				postInvalidate();
-				return;
-			}
-
-			if (absT > 180)
+			synchronized (surfaceHolder)
 			{
-				t = t - Math.signum(t) * 360;
-				absT = Math.abs(t);
+				float[] values = new float[12];
+				long[] starts = new long[3];
+				renderer.saveAnimation(values, starts);
+				map.putFloat("azimuth", renderer.getAzimuth());
+				map.putFloat("pitch", renderer.getPitch());
+				map.putFloat("roll", renderer.getRoll());
+				map.putBoolean("isSmooth", renderer.isSmooth());
+				map.putBoolean("rotateFace", renderer.isFaceRotation());
+				map.putFloatArray("animation", values);
+				map.putLongArray("animationStarts", starts);
 			}
+		}
 
-			long sysTime = (long) (System.nanoTime() * 10E-6);
-			float time = sysTime - pitchAnimationStart;
-
-			// We were not moving
-			if (pitchAnimationStart == 0)
-			{
-				time = 0;
-				pitchAnimationStart = sysTime;
-				pitchAnimationDuration = PITCH_ANIMATION_DURATION;
-				pitchTurn = t;
-				pitchAnimationReference = pitchRealTime;
-			}
-			// We need to change direction
-			else if (Math.signum(t) != Math.signum(pitchTurn))
-			{
-				// We are accelerating
-				if (time < pitchAnimationDuration / 2)
-				{
-					// Start deceleration
-					float tt = time;
-					time = pitchAnimationDuration - time;
-					pitchTurn *= time / pitchAnimationDuration;
-					pitchAnimationDuration = tt;
-					pitchAnimationStart = (long) (sysTime - time);
-					pitchAnimationReference = pitchRealTime;
-				}
-				// We were decelerating
-				else if (time > pitchAnimationDuration)
-				{
-					pitchAnimationStart = 0;
-					calcAzimuthRotation();
-					return;
-				}
-			}
-			else
+		void restoreState(Bundle map, boolean animation)
+		{
+			synchronized (surfaceHolder)
 			{
-				float t2 = pitch - pitchAnimationReference;
-				if (Math.abs(t2) > 180)
-					t2 = t2 - Math.signum(t2) * 360;
-				float r = t2 / pitchTurn;
-
-				if (r > 1.)
-				{
-					pitchTurn = t2;
-				}
+				renderer.setSmoothing(map.getBoolean("isSmooth"));
+				renderer.setFaceRotation(map.getBoolean("rotateFace"));
+				float[] values = map.getFloatArray("animation");
+				long[] starts = map.getLongArray("animationStarts");
+				if (animation && values != null && starts != null)
+					renderer.restoreAnimation(values, starts);
+				renderer.setAzimuth(map.getFloat("azimuth"));
+				renderer.setPitch(map.getFloat("pitch"));
+				renderer.setRoll(map.getFloat("roll"));
 			}
-
-			if (time > pitchAnimationDuration)
-				time = pitchAnimationDuration;
-
-			if (Math.abs(pitchTurn) > NEEDLE_PRECISION)
-				pitchRealTime = animation.ease(time, pitchAnimationReference, pitchTurn, pitchAnimationDuration);
-			if (time >= pitchAnimationDuration)
-				pitchAnimationStart = 0;
 		}
 	}
 
@@ -459,70 +309,90 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 	{
 		super(context, attrs);
 
-		isSmooth = true;
-		rotateFace = false;
-
-		azimuth = 0;
-		pitch = 0;
-		
 		// register our interest in hearing about changes to our surface
 		SurfaceHolder holder = getHolder();
 		holder.addCallback(this);
+		dial = new CompassDial(holder);
 	}
 
-	public CompassThread getThread()
+	public void setSmothing(boolean smoothing)
 	{
-		return thread;
+		dial.setSmothing(smoothing);
 	}
 
-	public void setSmothing(boolean smoothing)
+	public void setFaceRotation(boolean rotateFace)
 	{
-		if (thread != null)
-			thread.setSmothing(smoothing);
-		else
-			isSmooth = smoothing;
+		dial.setFaceRotation(rotateFace);
 	}
 
-	public void setFaceRotation(boolean rotateFace)
+	/**
+	 * Enables perspective tilt of pre-rendered dial by pitch and roll instead
+	 * of flattening it by pitch only.
+	 */
+	public void setTilt(boolean tilt)
+	{
+		dial.setTilt(tilt);
+	}
+
+	/**
+	 * Switches needle animation and dial math to lookup tables.
+	 */
+	public void setFastMath(boolean fastMath)
+	{
+		HeadingMath.setTables(fastMath);
+		dial.setTableEasing(fastMath);
+	}
+
+	public void setAzimuth(float azimuth)
+	{
+		dial.setAzimuth(azimuth);
+	}
+
+	public void setPitch(float pitch)
 	{
-		if (thread != null)
-			thread.setFaceRotation(rotateFace);
-		else
-			this.rotateFace = rotateFace;
+		dial.setPitch(pitch);
+	}
+
+	/**
+	 * Logs time passed from given moment till the first frame is drawn.
+	 */
+	public void measureFirstFrame(long start)
+	{
+		firstFrameStart = start;
+	}
+
+	public void setWaypointOverlay(WaypointOverlay overlay)
+	{
+		dial.setWaypointOverlay(overlay);
+	}
+
+	@Override
+	public void onHeadingChanged(Attitude attitude)
+	{
+		dial.setAzimuth(attitude.getAzimuth());
+		dial.setPitch(attitude.getPitch());
+		dial.setRoll(attitude.getRoll());
 	}
 
 	public void surfaceCreated(SurfaceHolder holder)
 	{
-		// start the thread here so that we don't busy-wait in run()
-		// waiting for the surface to be created
-		thread = new CompassThread(holder);
-		thread.setRunning(true);
-		thread.start();
+		dial.attach();
+		RenderScheduler.getInstance().add(dial);
+		HeadingProvider.getInstance(getContext()).addListener(this);
 	}
 
 	public void surfaceDestroyed(SurfaceHolder holder)
 	{
-		// we have to tell thread to shut down & wait for it to finish, or else
-		// it might touch the Surface after we return and explode
-		boolean retry = true;
-		thread.setRunning(false);
-		while (retry)
-		{
-			try
-			{
-				thread.join();
-				retry = false;
-			}
-			catch (InterruptedException e)
-			{
-			}
-		}
+		HeadingProvider.getInstance(getContext()).removeListener(this);
+		RenderScheduler.getInstance().remove(dial);
+		// render loop can be drawing this dial right now, detach waits for it
+		dial.detach();
 	}
 
 	@Override
 	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height)
 	{
-        thread.setSurfaceSize(width, height);
+		dial.setSurfaceSize(width, height);
 	}
 
 	/**
@@ -534,20 +404,18 @@ public class CompassView extends SurfaceView implements SurfaceHolder.Callback
 	public Bundle saveState(Bundle map)
 	{
 		if (map != null)
-		{
-			map.putFloat("azimuth", azimuth);
-			map.putFloat("pitch", pitch);
-			map.putBoolean("isSmooth", isSmooth);
-			map.putBoolean("rotateFace", rotateFace);
-		}
+			dial.saveState(map);
 		return map;
 	}
 
-	public synchronized void restoreState(Bundle savedState)
+	/**
+	 * Restores view state.
+	 *
+	 * @param animation true if needle animation should be continued, only
+	 *            valid within the same process
+	 */
+	public synchronized void restoreState(Bundle savedState, boolean animation)
 	{
-		azimuth = savedState.getFloat("azimuth");
-		pitch = savedState.getFloat("pitch");
-		isSmooth = savedState.getBoolean("isSmooth");
-		rotateFace = savedState.getBoolean("rotateFace");
+		dial.restoreState(savedState, animation);
 	}
 }
@@ -0,0 +1,364 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.HashSet;
+import java.util.List;
+
+import android.app.ActivityManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Paint.Style;
+import android.graphics.Path;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+/**
+ * Feeds home screen widgets from shared heading pipeline. Dial is redrawn only
+ * when heading moves beyond deadband and not more often than configured.
+ * Sensors are released while screen is off. Before Android 5 they are also
+ * released while home screen is not in front. Later versions do not report
+ * tasks of other apps, there widget is refreshed from short sensor sessions
+ * at low rate instead.
+ */
+public class CompassWidgetService extends Service implements HeadingProvider.OnHeadingChangedListener, OnSharedPreferenceChangeListener
+{
+	private static final String TAG = "CompassWidget";
+
+	private static final float DEADBAND = 2f;
+	private static final int DIAL_SIZE = 144;
+	private static final int REPORT_PERIOD = 100;
+	private static final long VISIBILITY_CHECK_INTERVAL = 2000;
+	private static final long SAMPLING_INTERVAL = 15000;
+	private static final long SAMPLING_DURATION = 1000;
+
+	private HeadingProvider headingProvider;
+	private AppWidgetManager appWidgetManager;
+	private ComponentName widgetComponent;
+	private ActivityManager activityManager;
+	private final HashSet<String> homePackages = new HashSet<String>();
+	private final Handler handler = new Handler();
+
+	private boolean listening;
+	private long updateInterval;
+	private long lastUpdate;
+	private boolean updatePending;
+	private float renderedAzimuth = Float.NaN;
+	private float pendingAzimuth;
+
+	private Bitmap dial;
+	private Canvas dialCanvas;
+	private Paint borderPaint;
+	private Paint textPaint;
+	private Paint needlePaint;
+	private Path needlePath;
+
+	private int updateCount;
+	private int skippedCount;
+	private long renderTime;
+
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+
+		headingProvider = HeadingProvider.getInstance(this);
+		appWidgetManager = AppWidgetManager.getInstance(this);
+		widgetComponent = new ComponentName(this, CompassWidgetProvider.class);
+		activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+
+		Intent home = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
+		List<ResolveInfo> launchers = getPackageManager().queryIntentActivities(home, 0);
+		if (launchers != null)
+		{
+			for (ResolveInfo info : launchers)
+				homePackages.add(info.activityInfo.packageName);
+		}
+
+		dial = Bitmap.createBitmap(DIAL_SIZE, DIAL_SIZE, Bitmap.Config.ARGB_8888);
+		dialCanvas = new Canvas(dial);
+		borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		borderPaint.setStyle(Style.STROKE);
+		borderPaint.setColor(Color.LTGRAY);
+		borderPaint.setStrokeWidth(4);
+		textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
+		textPaint.setStyle(Style.FILL);
+		textPaint.setTextAlign(Align.CENTER);
+		textPaint.setTextSize(DIAL_SIZE / 6);
+		textPaint.setColor(Color.LTGRAY);
+		needlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		needlePaint.setStyle(Style.FILL);
+		needlePaint.setColor(Color.RED);
+		needlePath = new Path();
+
+		IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		registerReceiver(screenReceiver, filter);
+
+		PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(this);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId)
+	{
+		SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_compass_widgetinterval));
+
+		int[] ids = appWidgetManager.getAppWidgetIds(widgetComponent);
+		if (ids == null || ids.length == 0)
+		{
+			stopSelf();
+			return START_NOT_STICKY;
+		}
+
+		PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		scheduleListening(powerManager.isScreenOn());
+		renderedAzimuth = Float.NaN;
+		render(headingProvider.getAttitude().getAzimuth());
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+		unregisterReceiver(screenReceiver);
+		PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
+		scheduleListening(false);
+		report();
+		dial.recycle();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent)
+	{
+		return null;
+	}
+
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+	{
+		if (key.equals(getString(R.string.pref_compass_widgetinterval)))
+		{
+			updateInterval = Integer.parseInt(sharedPreferences.getString(key, getString(R.string.def_widgetinterval)));
+		}
+	}
+
+	@Override
+	public void onHeadingChanged(Attitude attitude)
+	{
+		float azimuth = attitude.getAzimuth();
+		if (!Float.isNaN(renderedAzimuth))
+		{
+			float delta = Math.abs(azimuth - renderedAzimuth);
+			if (delta > 180)
+				delta = 360 - delta;
+			if (delta < DEADBAND)
+			{
+				skippedCount++;
+				return;
+			}
+		}
+
+		pendingAzimuth = azimuth;
+		if (updatePending)
+		{
+			skippedCount++;
+			return;
+		}
+
+		long wait = lastUpdate + updateInterval - SystemClock.uptimeMillis();
+		if (wait <= 0)
+		{
+			render(azimuth);
+		}
+		else
+		{
+			// Coalesce all updates that arrive within interval into one
+			updatePending = true;
+			handler.postDelayed(pendingUpdate, wait);
+		}
+	}
+
+	private final Runnable pendingUpdate = new Runnable() {
+		@Override
+		public void run()
+		{
+			updatePending = false;
+			render(pendingAzimuth);
+		}
+	};
+
+	/**
+	 * Starts sensor listening policy for the current screen state.
+	 */
+	private void scheduleListening(boolean screenOn)
+	{
+		handler.removeCallbacks(visibilityCheck);
+		handler.removeCallbacks(sampling);
+		handler.removeCallbacks(samplingEnd);
+		if (!screenOn)
+			stopListening();
+		else if (Build.VERSION.SDK_INT < 21)
+			handler.post(visibilityCheck);
+		else
+			handler.post(sampling);
+	}
+
+	/**
+	 * Widgets can be seen only when home screen is in front. Used only before
+	 * Android 5, later versions report only own tasks.
+	 */
+	private boolean isWidgetVisible()
+	{
+		List<ActivityManager.RunningTaskInfo> tasks = activityManager.getRunningTasks(1);
+		if (tasks == null || tasks.isEmpty() || tasks.get(0).topActivity == null)
+			return true;
+		String top = tasks.get(0).topActivity.getPackageName();
+		return homePackages.isEmpty() || homePackages.contains(top);
+	}
+
+	private final Runnable visibilityCheck = new Runnable() {
+		@Override
+		public void run()
+		{
+			if (isWidgetVisible())
+				startListening();
+			else
+				stopListening();
+			handler.postDelayed(this, VISIBILITY_CHECK_INTERVAL);
+		}
+	};
+
+	private final Runnable sampling = new Runnable() {
+		@Override
+		public void run()
+		{
+			startListening();
+			handler.postDelayed(samplingEnd, SAMPLING_DURATION);
+			handler.postDelayed(this, SAMPLING_INTERVAL);
+		}
+	};
+
+	private final Runnable samplingEnd = new Runnable() {
+		@Override
+		public void run()
+		{
+			// Show the last heading of the session before sensors are released
+			if (updatePending)
+			{
+				handler.removeCallbacks(pendingUpdate);
+				pendingUpdate.run();
+			}
+			stopListening();
+		}
+	};
+
+	private void startListening()
+	{
+		if (listening)
+			return;
+		headingProvider.addListener(this);
+		listening = true;
+	}
+
+	private void stopListening()
+	{
+		if (!listening)
+			return;
+		headingProvider.removeListener(this);
+		handler.removeCallbacks(pendingUpdate);
+		updatePending = false;
+		listening = false;
+	}
+
+	private void render(float azimuth)
+	{
+		long start = System.nanoTime();
+
+		float c = DIAL_SIZE / 2f;
+		float r = c - 4;
+
+		dial.eraseColor(Color.TRANSPARENT);
+		dialCanvas.save();
+		dialCanvas.translate(c, c);
+		dialCanvas.drawCircle(0, 0, r, borderPaint);
+		dialCanvas.rotate(-azimuth);
+		dialCanvas.drawText("N", 0, -r + textPaint.getTextSize() + 4, textPaint);
+		needlePath.reset();
+		needlePath.moveTo(0, -r * 0.5f);
+		needlePath.lineTo(r * 0.12f, 0);
+		needlePath.lineTo(-r * 0.12f, 0);
+		needlePath.close();
+		dialCanvas.drawPath(needlePath, needlePaint);
+		dialCanvas.restore();
+
+		RemoteViews views = new RemoteViews(getPackageName(), R.layout.widget_compass);
+		views.setImageViewBitmap(R.id.widget_dial, dial);
+		views.setOnClickPendingIntent(R.id.widget_dial, PendingIntent.getActivity(this, 0, new Intent(this, CompassActivity.class), 0));
+		appWidgetManager.updateAppWidget(widgetComponent, views);
+
+		renderedAzimuth = azimuth;
+		lastUpdate = SystemClock.uptimeMillis();
+		renderTime += System.nanoTime() - start;
+		updateCount++;
+		if (updateCount % REPORT_PERIOD == 0)
+			report();
+	}
+
+	private void report()
+	{
+		if (updateCount == 0)
+			return;
+		Log.d(TAG, "updates: " + updateCount + ", skipped: " + skippedCount + ", avg render: " + (renderTime / updateCount / 1000) + " us");
+	}
+
+	private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction()))
+				scheduleListening(false);
+			else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction()))
+				scheduleListening(true);
+		}
+	};
+}
@@ -0,0 +1,139 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Course hold alarm logic. Alarm is raised when heading stays beyond
+ * tolerance for debounce time and is cleared when heading returns inside
+ * tolerance minus hysteresis for the same time, so sensor noise near the
+ * border does not toggle it. Also tells whether heading is close enough to
+ * the border to need faster sampling, this turns on at once and off only
+ * after heading stays away from the border for debounce time, because every
+ * change re-registers sensors.
+ */
+public class CourseHoldAlarm
+{
+	public static final long DEBOUNCE = 3000000000L;
+
+	private static final float HYSTERESIS = 2f;
+	/** Fast sampling starts at this fraction of tolerance */
+	private static final float NEAR_FRACTION = 0.7f;
+
+	private final float course;
+	private final float tolerance;
+
+	private boolean alarm;
+	private long pendingSince = -1;
+	private boolean near;
+	private long farSince = -1;
+	private float error;
+
+	/**
+	 * @param course course to hold, degrees
+	 * @param tolerance allowed deviation, degrees
+	 */
+	public CourseHoldAlarm(float course, float tolerance)
+	{
+		this.course = course;
+		this.tolerance = tolerance;
+	}
+
+	public float getCourse()
+	{
+		return course;
+	}
+
+	/**
+	 * Returns signed deviation of the last heading from course, positive to
+	 * starboard.
+	 */
+	public float getError()
+	{
+		return error;
+	}
+
+	public boolean isAlarm()
+	{
+		return alarm;
+	}
+
+	/**
+	 * Returns true if heading is close to tolerance border or beyond it.
+	 */
+	public boolean isNear()
+	{
+		return near;
+	}
+
+	/**
+	 * Evaluates new heading.
+	 *
+	 * @param timestamp heading time, nanoseconds
+	 * @return true if alarm state has changed
+	 */
+	public boolean update(float azimuth, long timestamp)
+	{
+		error = azimuth - course;
+		if (error > 180)
+			error -= 360;
+		else if (error < -180)
+			error += 360;
+		float deviation = Math.abs(error);
+
+		float nearBorder = tolerance * NEAR_FRACTION;
+		if (!near)
+		{
+			near = deviation > nearBorder;
+		}
+		else if (deviation > nearBorder - HYSTERESIS)
+		{
+			farSince = -1;
+		}
+		else if (farSince < 0)
+		{
+			farSince = timestamp;
+		}
+		else if (timestamp - farSince >= DEBOUNCE)
+		{
+			near = false;
+			farSince = -1;
+		}
+
+		// Condition that would flip current state
+		boolean flipping = alarm ? deviation < tolerance - HYSTERESIS : deviation > tolerance;
+		if (!flipping)
+		{
+			pendingSince = -1;
+			return false;
+		}
+		if (pendingSince < 0)
+		{
+			pendingSince = timestamp;
+			return false;
+		}
+		if (timestamp - pendingSince < DEBOUNCE)
+			return false;
+
+		alarm = !alarm;
+		pendingSince = -1;
+		return true;
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.hardware.SensorManager;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Foreground service that alerts when heading drifts off the course held at
+ * start. Runs its own sensor subscription on a background thread without any
+ * rendering, so it keeps working with screen off. Sensors are sampled slowly
+ * in batches while heading is well within tolerance and at UI rate near the
+ * tolerance border.
+ * <p>
+ * If device has wake-up sensors they are used and device is allowed to sleep
+ * between batches, otherwise partial wake lock is held for the whole session
+ * and batching only reduces thread wakeups, not CPU awake time.
+ */
+public class CourseHoldService extends Service implements SampleProcessor.OnAttitudeListener
+{
+	private static final String TAG = "CourseHold";
+
+	private static final int NOTIFICATION_ID = 2;
+	private static final long REPORT_INTERVAL = 600000;
+	/** Keeps device awake from burst delivery until it is processed */
+	private static final long BURST_WAKE_TIME = 1000;
+
+	private static volatile boolean running;
+
+	private HandlerThread thread;
+	private Handler handler;
+	private DeviceSensorSource source;
+	private SampleProcessor processor;
+	private CourseHoldAlarm alarm;
+	private float tolerance;
+	private boolean fast;
+
+	private NotificationManager notificationManager;
+	private PowerManager.WakeLock wakeLock;
+	private PowerManager.WakeLock burstWakeLock;
+	private boolean wakeUp;
+
+	private long startTime;
+	private long startCpuTime;
+	private long deliveries;
+	private long fastTime;
+	private long fastSince;
+
+	public static boolean isRunning()
+	{
+		return running;
+	}
+
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+		running = true;
+
+		SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+		tolerance = Integer.parseInt(sharedPreferences.getString(getString(R.string.pref_compass_holdtolerance), getString(R.string.def_holdtolerance)));
+
+		notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		startForeground(NOTIFICATION_ID, buildNotification(getString(R.string.msg_holdstarting), false));
+
+		// Non-wake-up sensors of sleeping device do not deliver events
+		PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		wakeUp = DeviceSensorSource.hasWakeUpSensors(this);
+		if (wakeUp)
+		{
+			burstWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+			burstWakeLock.setReferenceCounted(false);
+		}
+		else
+		{
+			wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+			wakeLock.acquire();
+		}
+
+		thread = new HandlerThread("CourseHold");
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		handler.post(new Runnable() {
+			@Override
+			public void run()
+			{
+				processor = new SampleProcessor(CourseHoldService.this);
+				source = new DeviceSensorSource(CourseHoldService.this, handler);
+				source.setWakeUp(wakeUp);
+				startTime = SystemClock.elapsedRealtime();
+				startCpuTime = Debug.threadCpuTimeNanos();
+				setRate(true);
+				handler.postDelayed(reportTask, REPORT_INTERVAL);
+			}
+		});
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId)
+	{
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+		running = false;
+		handler.post(new Runnable() {
+			@Override
+			public void run()
+			{
+				handler.removeCallbacks(reportTask);
+				source.stop();
+				report();
+				thread.quit();
+				if (burstWakeLock != null)
+					burstWakeLock.release();
+			}
+		});
+		if (wakeLock != null)
+			wakeLock.release();
+		stopForeground(true);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent)
+	{
+		return null;
+	}
+
+	/**
+	 * Switches between slow batched and fast sampling, re-registering sensors.
+	 */
+	private void setRate(boolean fast)
+	{
+		long now = SystemClock.elapsedRealtime();
+		if (this.fast && !fast)
+			fastTime += now - fastSince;
+		else if (!this.fast && fast)
+			fastSince = now;
+		this.fast = fast;
+
+		source.stop();
+		source.setDelay(fast ? SensorManager.SENSOR_DELAY_UI : SensorManager.SENSOR_DELAY_NORMAL);
+		boolean batching = !fast && DeviceSensorSource.isBatchingSupported();
+		processor.setBatching(true, scheduleBurst);
+		source.start(processor, batching);
+	}
+
+	@Override
+	public void onAttitude(Attitude attitude, float[] accelerometer, float[] magnetic)
+	{
+		float azimuth = attitude.getAzimuth();
+		if (alarm == null)
+		{
+			// Hold the course the device points to when first reading is ready
+			alarm = new CourseHoldAlarm(azimuth, tolerance);
+			notificationManager.notify(NOTIFICATION_ID, buildNotification(getString(R.string.msg_holdcourse, Math.round(azimuth), Math.round(tolerance)), false));
+			setRate(false);
+			return;
+		}
+
+		if (alarm.update(azimuth, attitude.getTimestamp()))
+		{
+			String text;
+			if (alarm.isAlarm())
+				text = getString(R.string.msg_holdoffcourse, Math.round(alarm.getError()), Math.round(alarm.getCourse()));
+			else
+				text = getString(R.string.msg_holdcourse, Math.round(alarm.getCourse()), Math.round(tolerance));
+			notificationManager.notify(NOTIFICATION_ID, buildNotification(text, alarm.isAlarm()));
+		}
+		if (alarm.isNear() != fast)
+			setRate(alarm.isNear());
+	}
+
+	private Notification buildNotification(String text, boolean alert)
+	{
+		Notification notification = new Notification(R.drawable.ic_launcher, alert ? text : null, System.currentTimeMillis());
+		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, CompassActivity.class), 0);
+		notification.setLatestEventInfo(this, getString(R.string.hold_title), text, contentIntent);
+		notification.flags |= Notification.FLAG_ONGOING_EVENT;
+		if (alert)
+		{
+			notification.defaults |= Notification.DEFAULT_SOUND;
+			notification.vibrate = new long[] { 0, 500, 250, 500, 250, 500 };
+		}
+		return notification;
+	}
+
+	// Burst start is one thread wakeup, whether it brings one sample or a batch
+	private final Runnable scheduleBurst = new Runnable() {
+		@Override
+		public void run()
+		{
+			deliveries++;
+			// System keeps device awake only while wake-up event is being delivered
+			if (burstWakeLock != null)
+				burstWakeLock.acquire(BURST_WAKE_TIME);
+			handler.post(processBurst);
+		}
+	};
+
+	private final Runnable processBurst = new Runnable() {
+		@Override
+		public void run()
+		{
+			processor.processBurst();
+			if (burstWakeLock != null)
+				burstWakeLock.release();
+		}
+	};
+
+	private final Runnable reportTask = new Runnable() {
+		@Override
+		public void run()
+		{
+			report();
+			handler.postDelayed(this, REPORT_INTERVAL);
+		}
+	};
+
+	private void report()
+	{
+		long elapsed = SystemClock.elapsedRealtime() - startTime;
+		if (elapsed <= 0)
+			return;
+		long fastTotal = fastTime + (fast ? SystemClock.elapsedRealtime() - fastSince : 0);
+		long cpu = (Debug.threadCpuTimeNanos() - startCpuTime) / 1000000;
+		Log.d(TAG, "running " + elapsed / 1000 + " s, " + (wakeUp ? "wake-up sensors" : "wake lock") + ", wakeups/h: " + deliveries * 3600000 / elapsed + ", samples: " + processor.getSampleCount() + ", cpu: " + cpu + " ms ("
+				+ cpu * 3600000 / elapsed + " ms/h), fast sampling " + fastTotal * 100 / elapsed + "% of time");
+	}
+}
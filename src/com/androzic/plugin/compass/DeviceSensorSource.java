@@ -0,0 +1,247 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.lang.reflect.Method;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Samples from device accelerometer and magnetometer. Samples are delivered
+ * on the thread of given handler, main thread by default.
+ */
+public class DeviceSensorSource implements SensorSource, SensorEventListener
+{
+	private static final String TAG = "DeviceSensorSource";
+
+	private static final int MAX_REPORT_LATENCY = 500000;
+
+	// Available since API 19
+	private static Method registerListenerBatched;
+	private static Method registerListenerBatchedHandler;
+	// Available since API 21
+	private static Method getDefaultSensorWakeUp;
+
+	static
+	{
+		try
+		{
+			registerListenerBatched = SensorManager.class.getMethod("registerListener", SensorEventListener.class, Sensor.class, int.class, int.class);
+			registerListenerBatchedHandler = SensorManager.class.getMethod("registerListener", SensorEventListener.class, Sensor.class, int.class, int.class, Handler.class);
+		}
+		catch (NoSuchMethodException e)
+		{
+			registerListenerBatched = null;
+			registerListenerBatchedHandler = null;
+		}
+		try
+		{
+			getDefaultSensorWakeUp = SensorManager.class.getMethod("getDefaultSensor", int.class, boolean.class);
+		}
+		catch (NoSuchMethodException e)
+		{
+			getDefaultSensorWakeUp = null;
+		}
+	}
+
+	private final Context context;
+	private final Handler handler;
+	private int delay = SensorManager.SENSOR_DELAY_UI;
+	private boolean wakeUp;
+	private SensorManager sensorManager;
+	private SampleListener listener;
+	private SensorDiagnostics diagnostics;
+
+	public DeviceSensorSource(Context context)
+	{
+		this(context, null);
+	}
+
+	public DeviceSensorSource(Context context, Handler handler)
+	{
+		this.context = context;
+		this.handler = handler;
+	}
+
+	/**
+	 * Attaches collector of event cadence statistics.
+	 */
+	public void setDiagnostics(SensorDiagnostics diagnostics)
+	{
+		this.diagnostics = diagnostics;
+	}
+
+	/**
+	 * Sets sensor rate as one of SensorManager.SENSOR_DELAY_* constants, takes
+	 * effect on next start.
+	 */
+	public void setDelay(int delay)
+	{
+		this.delay = delay;
+	}
+
+	/**
+	 * Selects wake-up variants of sensors, they wake sleeping device to
+	 * deliver events. Takes effect on next start, should be used only if
+	 * {@link #hasWakeUpSensors(Context)} returns true.
+	 */
+	public void setWakeUp(boolean wakeUp)
+	{
+		this.wakeUp = wakeUp;
+	}
+
+	public static boolean isBatchingSupported()
+	{
+		return registerListenerBatched != null;
+	}
+
+	/**
+	 * Returns true if device has wake-up accelerometer and magnetometer.
+	 * Most devices provide only non-wake-up ones, which deliver nothing while
+	 * device sleeps.
+	 */
+	public static boolean hasWakeUpSensors(Context context)
+	{
+		SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		if (sensorManager == null)
+			return false;
+		return getSensor(sensorManager, Sensor.TYPE_ACCELEROMETER, true) != null && getSensor(sensorManager, Sensor.TYPE_MAGNETIC_FIELD, true) != null;
+	}
+
+	private static Sensor getSensor(SensorManager sensorManager, int type, boolean wakeUp)
+	{
+		if (!wakeUp)
+			return sensorManager.getDefaultSensor(type);
+		if (getDefaultSensorWakeUp == null)
+			return null;
+		try
+		{
+			return (Sensor) getDefaultSensorWakeUp.invoke(sensorManager, type, true);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Wake-up sensor query failed", e);
+			return null;
+		}
+	}
+
+	@Override
+	public void start(SampleListener listener, boolean batching)
+	{
+		this.listener = listener;
+		sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		if (sensorManager != null)
+		{
+			Sensor acc = getSensor(sensorManager, Sensor.TYPE_ACCELEROMETER, wakeUp);
+			Sensor mag = getSensor(sensorManager, Sensor.TYPE_MAGNETIC_FIELD, wakeUp);
+			if (acc != null && mag != null)
+			{
+				if (diagnostics != null)
+				{
+					diagnostics.setSensorName(ACCELEROMETER, acc.getName() + " (" + acc.getVendor() + ")");
+					diagnostics.setSensorName(MAGNETIC, mag.getName() + " (" + mag.getVendor() + ")");
+					diagnostics.restart();
+				}
+				if (batching && isBatchingSupported())
+				{
+					registerBatched(acc);
+					registerBatched(mag);
+				}
+				else
+				{
+					sensorManager.registerListener(this, acc, delay, handler);
+					sensorManager.registerListener(this, mag, delay, handler);
+				}
+			}
+		}
+	}
+
+	private void registerBatched(Sensor sensor)
+	{
+		try
+		{
+			if (handler != null)
+				registerListenerBatchedHandler.invoke(sensorManager, this, sensor, delay, MAX_REPORT_LATENCY, handler);
+			else
+				registerListenerBatched.invoke(sensorManager, this, sensor, delay, MAX_REPORT_LATENCY);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Batched registration failed", e);
+			sensorManager.registerListener(this, sensor, delay, handler);
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+		if (sensorManager != null)
+		{
+			sensorManager.unregisterListener(this);
+			sensorManager = null;
+		}
+		listener = null;
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy)
+	{
+		int type = sensorType(sensor);
+		if (diagnostics != null && type >= 0)
+			diagnostics.onAccuracyChanged(type, accuracy);
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event)
+	{
+		int type = sensorType(event.sensor);
+		if (type < 0)
+			return;
+
+		boolean unreliable = event.accuracy == SensorManager.SENSOR_STATUS_UNRELIABLE;
+		if (diagnostics != null)
+			diagnostics.onEvent(type, event.timestamp, event.accuracy, unreliable);
+
+		if (unreliable || listener == null)
+			return;
+
+		listener.onSample(type, event.timestamp, event.values[0], event.values[1], event.values[2]);
+	}
+
+	private static int sensorType(Sensor sensor)
+	{
+		switch (sensor.getType())
+		{
+			case Sensor.TYPE_ACCELEROMETER:
+				return ACCELEROMETER;
+			case Sensor.TYPE_MAGNETIC_FIELD:
+				return MAGNETIC;
+			default:
+				return -1;
+		}
+	}
+}
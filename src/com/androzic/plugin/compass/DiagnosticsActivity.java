@@ -0,0 +1,105 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+/**
+ * Shows sensor cadence statistics, refreshed every second, and lets user
+ * share them as plain text report.
+ */
+public class DiagnosticsActivity extends Activity implements HeadingProvider.OnHeadingChangedListener
+{
+	private static final long REFRESH_INTERVAL = 1000;
+
+	private HeadingProvider headingProvider;
+	private TextView reportView;
+	private final Handler handler = new Handler();
+
+	@Override
+	public void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.act_diagnostics);
+		reportView = (TextView) findViewById(R.id.report);
+		headingProvider = HeadingProvider.getInstance(this);
+	}
+
+	@Override
+	protected void onResume()
+	{
+		super.onResume();
+		// Keep sensors running while statistics are watched
+		headingProvider.addListener(this);
+		handler.post(refresh);
+	}
+
+	@Override
+	protected void onPause()
+	{
+		super.onPause();
+		handler.removeCallbacks(refresh);
+		headingProvider.removeListener(this);
+	}
+
+	@Override
+	public void onHeadingChanged(Attitude attitude)
+	{
+	}
+
+	private final Runnable refresh = new Runnable() {
+		@Override
+		public void run()
+		{
+			reportView.setText(headingProvider.getDiagnostics().getReport());
+			handler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	@Override
+	public boolean onCreateOptionsMenu(final Menu menu)
+	{
+		getMenuInflater().inflate(R.menu.diagnostics, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(final MenuItem item)
+	{
+		switch (item.getItemId())
+		{
+			case R.id.menuShareReport:
+				Intent intent = new Intent(Intent.ACTION_SEND);
+				intent.setType("text/plain");
+				intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_title));
+				intent.putExtra(Intent.EXTRA_TEXT, headingProvider.getDiagnostics().getReport());
+				startActivity(Intent.createChooser(intent, getString(R.string.menu_sharereport)));
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,655 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import com.androzic.util.easing.Easing;
+import com.androzic.util.easing.QuinticInOut;
+import com.androzic.util.easing.TableEasing;
+
+/**
+ * Dial state, needle animation and drawing. Draws on abstract surface and
+ * does not touch Android classes, so every dial mode can be checked on plain
+ * JVM, see FrameBudgetCheck in bench folder. Not thread safe, the owner serializes
+ * access.
+ */
+public class DialRenderer
+{
+	public static final float BORDER_WIDTH = 5;
+
+	private static final float INSTRUMENTAL_ERROR = 1.f;
+	private static final float NEEDLE_PRECISION = 0.01f;
+	private static final long AZIMUTH_ANIMATION_DURATION = 4000;
+	private static final long PITCH_ANIMATION_DURATION = 10000;
+	private static final long ROLL_ANIMATION_DURATION = 10000;
+	private static final float MAX_TILT = 80f;
+	private static final int EASING_STEPS = 256;
+	/** Eye distance in dial radii, smaller values exaggerate perspective */
+	private static final float EYE_DISTANCE = 3f;
+
+	private boolean smooth = true;
+	private boolean rotateFace;
+	private WaypointOverlay waypointOverlay;
+
+	private float azimuth;
+	private float pitch;
+	private float roll;
+
+	private final String[] scaleLabels = new String[12];
+	private final DigitalReadout headingReadout = new DigitalReadout(true);
+	private final DigitalReadout pitchReadout = new DigitalReadout(false);
+	private float readoutAzimuth;
+	private float readoutPitch;
+	private float readoutX;
+	private float readoutY;
+	private float readoutSpacing;
+	private float tick30;
+	private float tick10;
+	private float tick5;
+
+	private Easing animation = new QuinticInOut();
+
+	private long azimuthAnimationStart;
+	private float azimuthAnimationDuration;
+	private float azimuthAnimationReference;
+	private float azimuthRealTime;
+	private float azimuthTurn;
+
+	private long pitchAnimationStart;
+	private float pitchAnimationDuration;
+	private float pitchAnimationReference;
+	private float pitchRealTime;
+	private float pitchTurn;
+
+	private long rollAnimationStart;
+	private float rollAnimationDuration;
+	private float rollAnimationReference;
+	private float rollRealTime;
+	private float rollTurn;
+
+	// Dial face pre-rendered for tilted drawing
+	private boolean faceTexture;
+	private float faceRadius;
+	private final float[] faceMatrix = new float[9];
+
+	private int compassWidth = 220;
+	private float scale = 1;
+	private int canvasWidth;
+	private int canvasHeight;
+
+	public DialRenderer()
+	{
+		for (int i = 72; i > 0; i -= 6)
+		{
+			String label;
+			if (i % 18 == 0)
+				label = i == 72 ? "N" : i == 54 ? "E" : i == 36 ? "S" : "W";
+			else
+				label = Integer.toString((72 - i) / 2);
+			scaleLabels[i / 6 - 1] = label;
+		}
+	}
+
+	public void setSmoothing(boolean smooth)
+	{
+		this.smooth = smooth;
+	}
+
+	public boolean isSmooth()
+	{
+		return smooth;
+	}
+
+	public void setFaceRotation(boolean rotateFace)
+	{
+		this.rotateFace = rotateFace;
+	}
+
+	public boolean isFaceRotation()
+	{
+		return rotateFace;
+	}
+
+	/**
+	 * Selects needle easing read from table instead of computed polynomial,
+	 * for devices with slow floating point.
+	 */
+	public void setTableEasing(boolean table)
+	{
+		animation = table ? new TableEasing(new QuinticInOut(), EASING_STEPS) : new QuinticInOut();
+	}
+
+	public void setWaypointOverlay(WaypointOverlay overlay)
+	{
+		waypointOverlay = overlay;
+	}
+
+	public void setAzimuth(float azimuth)
+	{
+		readoutAzimuth = azimuth;
+		if (Math.abs(azimuth - azimuthRealTime) < INSTRUMENTAL_ERROR)
+			return;
+
+		this.azimuth = azimuth;
+
+		if (smooth)
+			calcAzimuthRotation();
+		else
+			azimuthRealTime = azimuth;
+	}
+
+	public float getAzimuth()
+	{
+		return azimuth;
+	}
+
+	public void setPitch(float pitch)
+	{
+		readoutPitch = pitch;
+		if (Math.abs(pitch - pitchRealTime) < INSTRUMENTAL_ERROR)
+			return;
+
+		this.pitch = pitch;
+
+		if (smooth)
+			calcPitchRotation();
+		else
+			pitchRealTime = pitch;
+	}
+
+	public float getPitch()
+	{
+		return pitch;
+	}
+
+	public void setRoll(float roll)
+	{
+		if (Math.abs(roll - rollRealTime) < INSTRUMENTAL_ERROR)
+			return;
+
+		this.roll = roll;
+
+		if (smooth)
+			calcRollRotation();
+		else
+			rollRealTime = roll;
+	}
+
+	public float getRoll()
+	{
+		return roll;
+	}
+
+	/**
+	 * Advances needle animation, called before each frame.
+	 */
+	public void animate()
+	{
+		if (smooth)
+		{
+			calcAzimuthRotation();
+			calcPitchRotation();
+			calcRollRotation();
+		}
+	}
+
+	/**
+	 * Recalculates geometry for new surface size.
+	 */
+	public void setSize(int width, int height, DrawSurface surface)
+	{
+		canvasWidth = width;
+		canvasHeight = height;
+
+		if (width > height)
+		{
+			compassWidth = height / 2 - 20;
+		}
+		else
+		{
+			compassWidth = width / 2 - 20;
+		}
+		scale = compassWidth / 220.0f;
+
+		surface.setTextSize(DrawSurface.PAINT_LABEL, 35 * scale);
+		surface.setTextSize(DrawSurface.PAINT_READOUT, 48 * scale);
+		surface.setTextSize(DrawSurface.PAINT_MARKER_LABEL, 18 * scale);
+		headingReadout.measure(surface, DrawSurface.PAINT_READOUT);
+		pitchReadout.measure(surface, DrawSurface.PAINT_READOUT);
+
+		// Under the dial in portrait, in the left free area in landscape
+		readoutSpacing = 56 * scale;
+		if (height > width)
+		{
+			readoutX = width / 2;
+			readoutY = height / 2 + compassWidth + 10 * scale + readoutSpacing;
+		}
+		else
+		{
+			readoutX = (width / 2 - compassWidth - 10 * scale) / 2;
+			readoutY = height / 2;
+		}
+
+		tick30 = compassWidth - 45 * scale;
+		tick10 = compassWidth - 30 * scale;
+		tick5 = compassWidth - 20 * scale;
+	}
+
+	/**
+	 * Returns side of square bitmap that fits the dial face.
+	 */
+	public int getFaceTextureSize()
+	{
+		return (int) Math.ceil((compassWidth + 10 * scale + BORDER_WIDTH) * 2);
+	}
+
+	/**
+	 * Tells whether face texture of {@link #getFaceTextureSize()} is
+	 * available as {@link DrawSurface#BITMAP_FACE}.
+	 */
+	public void setFaceTexture(boolean available)
+	{
+		faceTexture = available;
+		faceRadius = getFaceTextureSize() / 2f;
+	}
+
+	/**
+	 * Computes perspective transform of the dial plane rotated by given
+	 * angle and tilted by pitch and roll, as seen from the eye above the
+	 * screen center. Plane to plane projection is exact homography, its
+	 * matrix is filled directly from rotation matrix.
+	 */
+	private void projectFace(float angle, float pitch, float roll)
+	{
+		float eye = faceRadius * EYE_DISTANCE;
+		float p = Math.max(-MAX_TILT, Math.min(MAX_TILT, pitch));
+		float q = Math.max(-MAX_TILT, Math.min(MAX_TILT, roll));
+		float ca = HeadingMath.cos(angle), sa = HeadingMath.sin(angle);
+		float cp = HeadingMath.cos(p), sp = HeadingMath.sin(p);
+		float cq = HeadingMath.cos(q), sq = HeadingMath.sin(q);
+
+		// Rotation in dial plane, then pitch about screen x axis, then roll
+		// about screen y axis, only first two columns matter for z = 0
+		float r00 = ca * cq + sa * sp * sq;
+		float r01 = -sa * cq + ca * sp * sq;
+		float r10 = sa * cp;
+		float r11 = ca * cp;
+		float r20 = sa * sp * cq - ca * sq;
+		float r21 = ca * sp * cq + sa * sq;
+
+		// Screen point is center + eye * (X, Y) / (eye + Z)
+		float cx = canvasWidth / 2;
+		float cy = canvasHeight / 2;
+		faceMatrix[0] = r00 + cx * r20 / eye;
+		faceMatrix[1] = r01 + cx * r21 / eye;
+		faceMatrix[2] = cx;
+		faceMatrix[3] = r10 + cy * r20 / eye;
+		faceMatrix[4] = r11 + cy * r21 / eye;
+		faceMatrix[5] = cy;
+		faceMatrix[6] = r20 / eye;
+		faceMatrix[7] = r21 / eye;
+		faceMatrix[8] = 1;
+	}
+
+	/**
+	 * Draws one frame.
+	 */
+	public void draw(DrawSurface surface)
+	{
+		surface.drawColor(0xff000000);
+
+		surface.save();
+		float faceAngle = rotateFace ? -azimuthRealTime : 0;
+		if (faceTexture)
+		{
+			// Whole face in one draw through perspective transform
+			projectFace(faceAngle, pitchRealTime, rollRealTime);
+			surface.concat(faceMatrix);
+			surface.drawBitmap(DrawSurface.BITMAP_FACE, -faceRadius, -faceRadius);
+		}
+		else
+		{
+			surface.translate(canvasWidth / 2, canvasHeight / 2);
+			surface.scale(1, (90 - Math.abs(pitchRealTime)) / 90);
+			surface.rotate(faceAngle);
+			drawFace(surface);
+		}
+
+		// Needle frame, north points up
+		surface.rotate(-azimuthRealTime - faceAngle);
+
+		if (waypointOverlay != null)
+			waypointOverlay.draw(surface, compassWidth + 10 * scale, scale);
+
+		surface.drawBitmap(DrawSurface.BITMAP_NEEDLE, -surface.getBitmapWidth(DrawSurface.BITMAP_NEEDLE) / 2, -surface.getBitmapHeight(DrawSurface.BITMAP_NEEDLE) / 2);
+		surface.restore();
+
+		headingReadout.setValue(readoutAzimuth);
+		pitchReadout.setValue(readoutPitch);
+		headingReadout.draw(surface, readoutX, readoutY, DrawSurface.PAINT_READOUT);
+		pitchReadout.draw(surface, readoutX, readoutY + readoutSpacing, DrawSurface.PAINT_READOUT);
+	}
+
+	/**
+	 * Draws dial border, ticks and labels around surface origin.
+	 */
+	public void drawFace(DrawSurface surface)
+	{
+		surface.drawCircle(0, 0, compassWidth + 10 * scale, DrawSurface.PAINT_BORDER);
+
+		// scale
+		for (int i = 72; i > 0; i--)
+		{
+			if (i % 2 == 1)
+				surface.drawRect(-2, compassWidth, +2, tick5, DrawSurface.PAINT_SCALE);
+			if (i % 6 == 0)
+			{
+				surface.drawRect(-5, compassWidth, +5, tick30, DrawSurface.PAINT_SCALE);
+				surface.drawText(scaleLabels[i / 6 - 1], 0, -compassWidth + 80 * scale, DrawSurface.PAINT_LABEL);
+			}
+			else if (i % 2 == 0)
+			{
+				surface.drawRect(-2, compassWidth, +2, tick10, DrawSurface.PAINT_SCALE);
+			}
+			surface.rotate(5);
+		}
+	}
+
+	/**
+	 * Saves in-flight needle animation into arrays of 12 values and 3 start
+	 * times. Start times come from System.nanoTime(), so saved animation can
+	 * be restored only within the same process.
+	 */
+	public void saveAnimation(float[] values, long[] starts)
+	{
+		values[0] = azimuthRealTime;
+		values[1] = azimuthAnimationDuration;
+		values[2] = azimuthAnimationReference;
+		values[3] = azimuthTurn;
+		values[4] = pitchRealTime;
+		values[5] = pitchAnimationDuration;
+		values[6] = pitchAnimationReference;
+		values[7] = pitchTurn;
+		values[8] = rollRealTime;
+		values[9] = rollAnimationDuration;
+		values[10] = rollAnimationReference;
+		values[11] = rollTurn;
+		starts[0] = azimuthAnimationStart;
+		starts[1] = pitchAnimationStart;
+		starts[2] = rollAnimationStart;
+	}
+
+	public void restoreAnimation(float[] values, long[] starts)
+	{
+		azimuthRealTime = values[0];
+		azimuthAnimationDuration = values[1];
+		azimuthAnimationReference = values[2];
+		azimuthTurn = values[3];
+		pitchRealTime = values[4];
+		pitchAnimationDuration = values[5];
+		pitchAnimationReference = values[6];
+		pitchTurn = values[7];
+		rollRealTime = values[8];
+		rollAnimationDuration = values[9];
+		rollAnimationReference = values[10];
+		rollTurn = values[11];
+		azimuthAnimationStart = starts[0];
+		pitchAnimationStart = starts[1];
+		rollAnimationStart = starts[2];
+	}
+
+	private void calcAzimuthRotation()
+	{
+		if (azimuth == azimuthRealTime)
+			return;
+
+		float t = azimuth - azimuthRealTime;
+		float absT = Math.abs(t);
+
+		if (absT < NEEDLE_PRECISION)
+		{
+			azimuthRealTime = azimuth;
+			azimuthAnimationStart = 0;
+			return;
+		}
+
+		if (absT > 180)
+		{
+			t = HeadingMath.wrap180(t);
+			absT = Math.abs(t);
+		}
+
+		long sysTime = (long) (System.nanoTime() * 10E-6);
+		float time = sysTime - azimuthAnimationStart;
+
+		// We were not moving
+		if (azimuthAnimationStart == 0)
+		{
+			time = 0;
+			azimuthAnimationStart = sysTime;
+			azimuthAnimationDuration = AZIMUTH_ANIMATION_DURATION;
+			azimuthTurn = t;
+			azimuthAnimationReference = azimuthRealTime;
+		}
+		// We need to change direction
+		else if (Math.signum(t) != Math.signum(azimuthTurn))
+		{
+			// We are accelerating
+			if (time < azimuthAnimationDuration / 2)
+			{
+				// Start deceleration
+				float tt = time;
+				time = azimuthAnimationDuration - time;
+				azimuthTurn *= time / azimuthAnimationDuration;
+				azimuthAnimationDuration = tt;
+				azimuthAnimationStart = (long) (sysTime - time);
+				azimuthAnimationReference = azimuthRealTime;
+			}
+			// We were decelerating
+			else if (time > azimuthAnimationDuration)
+			{
+				azimuthAnimationStart = 0;
+				calcAzimuthRotation();
+				return;
+			}
+		}
+		else
+		{
+			float t2 = azimuth - azimuthAnimationReference;
+			t2 = HeadingMath.wrap180(t2);
+			float r = t2 / azimuthTurn;
+
+			if (r > 1.)
+			{
+				azimuthTurn = t2;
+			}
+		}
+
+		if (time > azimuthAnimationDuration)
+			time = azimuthAnimationDuration;
+
+		if (Math.abs(azimuthTurn) > NEEDLE_PRECISION)
+			azimuthRealTime = animation.ease(time, azimuthAnimationReference, azimuthTurn, azimuthAnimationDuration);
+		if (azimuthRealTime < 0)
+		{
+			azimuthRealTime += 360.;
+			azimuthAnimationReference += 360.;
+		}
+		else if (azimuthRealTime >= 360.)
+		{
+			azimuthRealTime -= 360.;
+			azimuthAnimationReference -= 360.;
+		}
+		if (time >= azimuthAnimationDuration)
+			azimuthAnimationStart = 0;
+	}
+
+	private void calcPitchRotation()
+	{
+		if (pitch == pitchRealTime)
+			return;
+
+		float t = pitch - pitchRealTime;
+		float absT = Math.abs(t);
+
+		if (absT < NEEDLE_PRECISION)
+		{
+			pitchRealTime = pitch;
+			pitchAnimationStart = 0;
+			return;
+		}
+
+		if (absT > 180)
+		{
+			t = HeadingMath.wrap180(t);
+			absT = Math.abs(t);
+		}
+
+		long sysTime = (long) (System.nanoTime() * 10E-6);
+		float time = sysTime - pitchAnimationStart;
+
+		// We were not moving
+		if (pitchAnimationStart == 0)
+		{
+			time = 0;
+			pitchAnimationStart = sysTime;
+			pitchAnimationDuration = PITCH_ANIMATION_DURATION;
+			pitchTurn = t;
+			pitchAnimationReference = pitchRealTime;
+		}
+		// We need to change direction
+		else if (Math.signum(t) != Math.signum(pitchTurn))
+		{
+			// We are accelerating
+			if (time < pitchAnimationDuration / 2)
+			{
+				// Start deceleration
+				float tt = time;
+				time = pitchAnimationDuration - time;
+				pitchTurn *= time / pitchAnimationDuration;
+				pitchAnimationDuration = tt;
+				pitchAnimationStart = (long) (sysTime - time);
+				pitchAnimationReference = pitchRealTime;
+			}
+			// We were decelerating
+			else if (time > pitchAnimationDuration)
+			{
+				pitchAnimationStart = 0;
+				calcAzimuthRotation();
+				return;
+			}
+		}
+		else
+		{
+			float t2 = pitch - pitchAnimationReference;
+			t2 = HeadingMath.wrap180(t2);
+			float r = t2 / pitchTurn;
+
+			if (r > 1.)
+			{
+				pitchTurn = t2;
+			}
+		}
+
+		if (time > pitchAnimationDuration)
+			time = pitchAnimationDuration;
+
+		if (Math.abs(pitchTurn) > NEEDLE_PRECISION)
+			pitchRealTime = animation.ease(time, pitchAnimationReference, pitchTurn, pitchAnimationDuration);
+		if (time >= pitchAnimationDuration)
+			pitchAnimationStart = 0;
+	}
+
+	private void calcRollRotation()
+	{
+		if (roll == rollRealTime)
+			return;
+
+		float t = roll - rollRealTime;
+		float absT = Math.abs(t);
+
+		if (absT < NEEDLE_PRECISION)
+		{
+			rollRealTime = roll;
+			rollAnimationStart = 0;
+			return;
+		}
+
+		if (absT > 180)
+		{
+			t = HeadingMath.wrap180(t);
+			absT = Math.abs(t);
+		}
+
+		long sysTime = (long) (System.nanoTime() * 10E-6);
+		float time = sysTime - rollAnimationStart;
+
+		// We were not moving
+		if (rollAnimationStart == 0)
+		{
+			time = 0;
+			rollAnimationStart = sysTime;
+			rollAnimationDuration = ROLL_ANIMATION_DURATION;
+			rollTurn = t;
+			rollAnimationReference = rollRealTime;
+		}
+		// We need to change direction
+		else if (Math.signum(t) != Math.signum(rollTurn))
+		{
+			// We are accelerating
+			if (time < rollAnimationDuration / 2)
+			{
+				// Start deceleration
+				float tt = time;
+				time = rollAnimationDuration - time;
+				rollTurn *= time / rollAnimationDuration;
+				rollAnimationDuration = tt;
+				rollAnimationStart = (long) (sysTime - time);
+				rollAnimationReference = rollRealTime;
+			}
+			// We were decelerating
+			else if (time > rollAnimationDuration)
+			{
+				rollAnimationStart = 0;
+				calcRollRotation();
+				return;
+			}
+		}
+		else
+		{
+			float t2 = roll - rollAnimationReference;
+			t2 = HeadingMath.wrap180(t2);
+			float r = t2 / rollTurn;
+
+			if (r > 1.)
+			{
+				rollTurn = t2;
+			}
+		}
+
+		if (time > rollAnimationDuration)
+			time = rollAnimationDuration;
+
+		if (Math.abs(rollTurn) > NEEDLE_PRECISION)
+			rollRealTime = animation.ease(time, rollAnimationReference, rollTurn, rollAnimationDuration);
+		if (time >= rollAnimationDuration)
+			rollAnimationStart = 0;
+	}
+}
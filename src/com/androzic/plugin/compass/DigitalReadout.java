@@ -0,0 +1,145 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Numeric angle readout drawn from preallocated char buffer. Text is
+ * reformatted only when value changes at displayed precision (0.1 degree),
+ * its width is summed from cached glyph widths, so drawing does not allocate.
+ */
+public class DigitalReadout
+{
+	public static final char DEGREE = '\u00b0';
+
+	private static final char[] GLYPHS = "0123456789.+- NESW\u00b0".toCharArray();
+	private static final char[][] CARDINALS = { { 'N' }, { 'N', 'E' }, { 'E' }, { 'S', 'E' }, { 'S' }, { 'S', 'W' }, { 'W' }, { 'N', 'W' } };
+
+	private final boolean heading;
+	private final char[] text = new char[12];
+	private int length;
+	private int value = Integer.MIN_VALUE;
+
+	private final float[] glyphWidths = new float[256];
+	private final float[] measured = new float[GLYPHS.length];
+	private float width;
+
+	/**
+	 * @param heading true for 0-360 heading with cardinal direction, false
+	 *            for signed angle
+	 */
+	public DigitalReadout(boolean heading)
+	{
+		this.heading = heading;
+	}
+
+	/**
+	 * Caches glyph widths, should be called when text size or typeface
+	 * changes.
+	 */
+	public void measure(DrawSurface surface, int paint)
+	{
+		surface.getTextWidths(GLYPHS, 0, GLYPHS.length, paint, measured);
+		for (int i = 0; i < GLYPHS.length; i++)
+			glyphWidths[GLYPHS[i]] = measured[i];
+		width = textWidth();
+	}
+
+	/**
+	 * Updates displayed value.
+	 *
+	 * @return true if text has changed
+	 */
+	public boolean setValue(float degrees)
+	{
+		int tenths = Math.round(degrees * 10);
+		if (heading)
+			tenths = ((tenths % 3600) + 3600) % 3600;
+		if (tenths == value)
+			return false;
+		value = tenths;
+
+		length = 0;
+		if (!heading && tenths != 0)
+			text[length++] = tenths > 0 ? '+' : '-';
+		int abs = Math.abs(tenths);
+		appendInt(abs / 10);
+		text[length++] = '.';
+		text[length++] = (char) ('0' + abs % 10);
+		text[length++] = DEGREE;
+		if (heading)
+		{
+			text[length++] = ' ';
+			char[] cardinal = CARDINALS[((tenths + 225) / 450) % 8];
+			for (int i = 0; i < cardinal.length; i++)
+				text[length++] = cardinal[i];
+		}
+		width = textWidth();
+		return true;
+	}
+
+	public char[] getText()
+	{
+		return text;
+	}
+
+	public int length()
+	{
+		return length;
+	}
+
+	public float getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Draws text centered at x. Paint should have left alignment.
+	 */
+	public void draw(DrawSurface surface, float x, float y, int paint)
+	{
+		surface.drawText(text, 0, length, x - width / 2, y, paint);
+	}
+
+	private void appendInt(int v)
+	{
+		int start = length;
+		do
+		{
+			text[length++] = (char) ('0' + v % 10);
+			v /= 10;
+		}
+		while (v > 0);
+		for (int i = start, j = length - 1; i < j; i++, j--)
+		{
+			char c = text[i];
+			text[i] = text[j];
+			text[j] = c;
+		}
+	}
+
+	private float textWidth()
+	{
+		float w = 0;
+		for (int i = 0; i < length; i++)
+			w += glyphWidths[text[i]];
+		return w;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Drawing operations used by the dial. Paints and bitmaps are referred to
+ * by identifiers, so drawing code does not depend on android.graphics and
+ * can be run on plain JVM against {@link RecordingSurface}.
+ */
+public interface DrawSurface
+{
+	public static final int PAINT_BORDER = 0;
+	public static final int PAINT_SCALE = 1;
+	public static final int PAINT_LABEL = 2;
+	public static final int PAINT_READOUT = 3;
+	public static final int PAINT_MARKER = 4;
+	public static final int PAINT_MARKER_LABEL = 5;
+	public static final int PAINT_COUNT = 6;
+
+	public static final int BITMAP_NEEDLE = 0;
+	public static final int BITMAP_FACE = 1;
+	public static final int BITMAP_COUNT = 2;
+
+	public void save();
+
+	public void restore();
+
+	public void translate(float dx, float dy);
+
+	public void scale(float sx, float sy);
+
+	public void rotate(float degrees);
+
+	/**
+	 * Preconcats 3x3 matrix given in row-major order, as in
+	 * android.graphics.Matrix.setValues().
+	 */
+	public void concat(float[] values);
+
+	public void drawColor(int color);
+
+	public void drawCircle(float cx, float cy, float radius, int paint);
+
+	public void drawRect(float left, float top, float right, float bottom, int paint);
+
+	public void drawText(String text, float x, float y, int paint);
+
+	public void drawText(char[] text, int index, int count, float x, float y, int paint);
+
+	public void drawBitmap(int bitmap, float left, float top);
+
+	public int getBitmapWidth(int bitmap);
+
+	public int getBitmapHeight(int bitmap);
+
+	public void setTextSize(int paint, float size);
+
+	public void getTextWidths(char[] text, int index, int count, int paint, float[] widths);
+}
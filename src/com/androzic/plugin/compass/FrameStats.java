@@ -0,0 +1,127 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Per frame counters of drawing operations and CPU time, checked against
+ * fixed budgets. Operations are counted by {@link RecordingSurface}, CPU
+ * time is sampled by caller, so the class runs on plain JVM too.
+ */
+public class FrameStats
+{
+	// Budgets of a full dial frame: 72 ticks, 12 labels, up to 10 waypoint markers and digital
+	// readout, tilted dial replaces ticks and labels with one face texture bitmap
+	public static final int BUDGET_DRAWS = 85;
+	public static final int BUDGET_TRANSFORMS = 100;
+	public static final int BUDGET_TEXTS = 24;
+	public static final int BUDGET_BITMAPS = 2;
+	public static final long BUDGET_CPU_TIME = 8000000L;
+
+	public int draws;
+	public int transforms;
+	public int texts;
+	public int bitmaps;
+	public long cpuTime;
+
+	private long frameStart;
+	private long frames;
+	private long totalCpuTime;
+	private long overBudgetFrames;
+	private int reportedSignature;
+
+	/**
+	 * Starts frame.
+	 *
+	 * @param cpuTime current thread CPU time, nanoseconds
+	 */
+	public void begin(long cpuTime)
+	{
+		draws = 0;
+		transforms = 0;
+		texts = 0;
+		bitmaps = 0;
+		frameStart = cpuTime;
+	}
+
+	/**
+	 * Finishes frame.
+	 *
+	 * @param cpuTime current thread CPU time, nanoseconds
+	 * @return true if frame is over budget with counts not reported before
+	 */
+	public boolean end(long cpuTime)
+	{
+		this.cpuTime = cpuTime - frameStart;
+		frames++;
+		totalCpuTime += this.cpuTime;
+
+		if (isOverBudget())
+		{
+			overBudgetFrames++;
+			int signature = ((draws * 31 + transforms) * 31 + texts) * 31 + bitmaps;
+			if (signature != reportedSignature)
+			{
+				reportedSignature = signature;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isOverBudget()
+	{
+		return draws > BUDGET_DRAWS || transforms > BUDGET_TRANSFORMS || texts > BUDGET_TEXTS || bitmaps > BUDGET_BITMAPS || cpuTime > BUDGET_CPU_TIME;
+	}
+
+	/**
+	 * Restarts frame count and average CPU time, for comparison of dial modes.
+	 */
+	public void resetAverage()
+	{
+		frames = 0;
+		totalCpuTime = 0;
+		overBudgetFrames = 0;
+	}
+
+	public long getFrameCount()
+	{
+		return frames;
+	}
+
+	public long getOverBudgetFrameCount()
+	{
+		return overBudgetFrames;
+	}
+
+	/**
+	 * Returns average CPU time per frame in nanoseconds.
+	 */
+	public long getAverageCpuTime()
+	{
+		return frames > 0 ? totalCpuTime / frames : 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "draws: " + draws + "/" + BUDGET_DRAWS + ", transforms: " + transforms + "/" + BUDGET_TRANSFORMS + ", texts: " + texts + "/" + BUDGET_TEXTS + ", bitmaps: " + bitmaps + "/" + BUDGET_BITMAPS + ", cpu: " + (cpuTime / 1000) + "/" + (BUDGET_CPU_TIME / 1000) + " us";
+	}
+}
@@ -0,0 +1,709 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only heading, pitch and roll log. Raw samples are queued by the sensor
+ * thread into a preallocated ring and written by a background thread into
+ * memory-mapped files together with 1 second, 1 minute and 10 minute rollups
+ * (min/max/mean, azimuth mean is circular). Raw and 1 second tiers keep only
+ * recent history, older records are dropped in half-file steps. Bucket left
+ * incomplete by close() is resumed on the next open.
+ */
+public class HeadingLog
+{
+	public static final int TIER_RAW = 0;
+	public static final int TIER_SECOND = 1;
+	public static final int TIER_MINUTE = 2;
+	public static final int TIER_TEN_MINUTES = 3;
+
+	private static final long[] TIER_PERIODS = { 0, 1000, 60000, 600000 };
+	private static final String[] TIER_FILES = { "raw.log", "1s.log", "1m.log", "10m.log" };
+
+	private static final int RAW_RECORD_SIZE = 8 + 4 * 3;
+	private static final int ROLLUP_RECORD_SIZE = 8 + 4 + 4 * 3 * 3;
+	// Retention limits in records, 0 is unlimited: 8 MB of raw data and two
+	// days of seconds
+	private static final long[] TIER_MAX_RECORDS = { 8 * 1024 * 1024 / RAW_RECORD_SIZE, 2 * 24 * 3600, 0, 0 };
+
+	private static final int MAP_CHUNK = 256 * 1024;
+	private static final int COPY_CHUNK = 64 * 1024;
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final long FLUSH_INTERVAL = 1000;
+
+	// Single producer, single consumer ring
+	private final long[] queueTime = new long[QUEUE_CAPACITY];
+	private final float[] queueAzimuth = new float[QUEUE_CAPACITY];
+	private final float[] queuePitch = new float[QUEUE_CAPACITY];
+	private final float[] queueRoll = new float[QUEUE_CAPACITY];
+	private volatile int queueHead = 0;
+	private volatile int queueTail = 0;
+	private volatile long dropped = 0;
+
+	private final Segment[] segments = new Segment[TIER_FILES.length];
+	private final Rollup[] rollups = new Rollup[TIER_FILES.length];
+
+	private final Object lock = new Object();
+	private Thread writer;
+	private volatile boolean running;
+
+	public HeadingLog(File directory) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can not create log directory: " + directory);
+
+		segments[TIER_RAW] = new Segment(new File(directory, TIER_FILES[TIER_RAW]), RAW_RECORD_SIZE, TIER_MAX_RECORDS[TIER_RAW]);
+		for (int i = TIER_SECOND; i < TIER_FILES.length; i++)
+		{
+			segments[i] = new Segment(new File(directory, TIER_FILES[i]), ROLLUP_RECORD_SIZE, TIER_MAX_RECORDS[i]);
+			rollups[i] = new Rollup(TIER_PERIODS[i]);
+			rollups[i].resume(segments[i]);
+		}
+	}
+
+	public void start()
+	{
+		running = true;
+		writer = new Thread("HeadingLog") {
+			@Override
+			public void run()
+			{
+				while (running)
+				{
+					try
+					{
+						Thread.sleep(FLUSH_INTERVAL);
+					}
+					catch (InterruptedException e)
+					{
+					}
+					flush();
+				}
+			}
+		};
+		writer.setPriority(Thread.MIN_PRIORITY);
+		writer.start();
+	}
+
+	/**
+	 * Closes log files, pending rollups are written as is.
+	 */
+	public void close()
+	{
+		running = false;
+		if (writer != null)
+		{
+			writer.interrupt();
+			boolean retry = true;
+			while (retry)
+			{
+				try
+				{
+					writer.join();
+					retry = false;
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+			writer = null;
+		}
+		synchronized (lock)
+		{
+			drain();
+			for (int i = TIER_SECOND; i < TIER_FILES.length; i++)
+			{
+				// Resumed bucket without new samples is already on disk
+				if (rollups[i].count > 0 && !rollups[i].resumed)
+					rollups[i].write(segments[i]);
+			}
+			for (Segment segment : segments)
+				segment.close();
+		}
+	}
+
+	/**
+	 * Queues sample for writing. Never blocks, if writer falls behind sample is dropped.
+	 */
+	public void append(long time, float azimuth, float pitch, float roll)
+	{
+		int head = queueHead;
+		int next = (head + 1) % QUEUE_CAPACITY;
+		if (next == queueTail)
+		{
+			dropped++;
+			return;
+		}
+		queueTime[head] = time;
+		queueAzimuth[head] = azimuth;
+		queuePitch[head] = pitch;
+		queueRoll[head] = roll;
+		queueHead = next;
+	}
+
+	public long getDroppedCount()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Writes all queued samples to disk.
+	 */
+	public void flush()
+	{
+		synchronized (lock)
+		{
+			drain();
+		}
+	}
+
+	private void drain()
+	{
+		int tail = queueTail;
+		int head = queueHead;
+		while (tail != head)
+		{
+			long time = queueTime[tail];
+			float azimuth = queueAzimuth[tail];
+			float pitch = queuePitch[tail];
+			float roll = queueRoll[tail];
+
+			Segment raw = segments[TIER_RAW];
+			if (raw.reserve())
+			{
+				raw.buffer.putLong(time);
+				raw.buffer.putFloat(azimuth);
+				raw.buffer.putFloat(pitch);
+				raw.buffer.putFloat(roll);
+				raw.commit();
+			}
+			for (int i = TIER_SECOND; i < TIER_FILES.length; i++)
+				rollups[i].add(time, azimuth, pitch, roll, segments[i]);
+
+			tail = (tail + 1) % QUEUE_CAPACITY;
+		}
+		queueTail = tail;
+		for (Segment segment : segments)
+			segment.trim();
+	}
+
+	/**
+	 * Selects the finest tier that returns not more than maxPoints records for
+	 * the given time range and still keeps its start. Located by binary
+	 * search, raw data is not scanned.
+	 */
+	public int selectTier(long from, long to, int maxPoints)
+	{
+		synchronized (lock)
+		{
+			drain();
+			for (int i = TIER_RAW; i < TIER_FILES.length; i++)
+			{
+				Segment segment = segments[i];
+				if (isRetained(i, from) && segment.search(to + 1) - segment.search(from) <= maxPoints)
+					return i;
+			}
+			return TIER_TEN_MINUTES;
+		}
+	}
+
+	/**
+	 * Returns true if tier was not cut by retention after the given time.
+	 * Tier that was never cut starts within a minute of the minutes tier.
+	 */
+	private boolean isRetained(int tier, long from)
+	{
+		Segment segment = segments[tier];
+		if (segment.maxRecords == 0 || segment.records == 0)
+			return true;
+		long first = segment.getFirstTime();
+		if (from >= first)
+			return true;
+		Segment minutes = segments[TIER_MINUTE];
+		return minutes.records == 0 || first - minutes.getFirstTime() < TIER_PERIODS[TIER_MINUTE];
+	}
+
+	/**
+	 * Returns log data for the given time range at resolution that fits
+	 * maxPoints. If even the coarsest tier has more records, consecutive
+	 * records are merged so that points cover the whole range.
+	 */
+	public Series query(long from, long to, int maxPoints) throws IOException
+	{
+		synchronized (lock)
+		{
+			int tier = selectTier(from, to, maxPoints);
+			Segment segment = segments[tier];
+			long first = segment.search(from);
+			long total = segment.search(to + 1) - first;
+			int n = (int) Math.min(total, maxPoints);
+
+			Series series = new Series(tier, n);
+			if (n == 0)
+				return series;
+
+			MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, first * segment.recordSize, total * segment.recordSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			for (long k = 0; k < total; k++)
+			{
+				int i = (int) (k * n / total);
+				long time = buffer.getLong();
+				if (tier == TIER_RAW)
+				{
+					float a = buffer.getFloat();
+					float p = buffer.getFloat();
+					float r = buffer.getFloat();
+					series.merge(i, time, 1, a, a, a, p, p, p, r, r, r);
+				}
+				else
+				{
+					series.merge(i, time, buffer.getInt(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+				}
+			}
+			return series;
+		}
+	}
+
+	/**
+	 * Log data points, time is the start of the first merged record. Azimuth
+	 * extremes are reported as the arc from min clockwise to max, full turn
+	 * is reported as 0 to 360.
+	 */
+	public static class Series
+	{
+		public final int tier;
+		public final int length;
+		public final long[] time;
+		public final int[] count;
+		public final float[] azimuthMin;
+		public final float[] azimuthMax;
+		public final float[] azimuthMean;
+		public final float[] pitchMin;
+		public final float[] pitchMax;
+		public final float[] pitchMean;
+		public final float[] rollMin;
+		public final float[] rollMax;
+		public final float[] rollMean;
+
+		Series(int tier, int length)
+		{
+			this.tier = tier;
+			this.length = length;
+			time = new long[length];
+			count = new int[length];
+			azimuthMin = new float[length];
+			azimuthMax = new float[length];
+			azimuthMean = new float[length];
+			pitchMin = new float[length];
+			pitchMax = new float[length];
+			pitchMean = new float[length];
+			rollMin = new float[length];
+			rollMax = new float[length];
+			rollMean = new float[length];
+		}
+
+		/**
+		 * Adds record to the point, means are weighted by sample count.
+		 */
+		void merge(int i, long t, int n, float aMin, float aMax, float aMean, float pMin, float pMax, float pMean, float rMin, float rMax, float rMean)
+		{
+			int c = count[i];
+			if (c == 0)
+			{
+				time[i] = t;
+				count[i] = n;
+				azimuthMin[i] = aMin;
+				azimuthMax[i] = aMax;
+				azimuthMean[i] = aMean;
+				pitchMin[i] = pMin;
+				pitchMax[i] = pMax;
+				pitchMean[i] = pMean;
+				rollMin[i] = rMin;
+				rollMax[i] = rMax;
+				rollMean[i] = rMean;
+				return;
+			}
+			count[i] = c + n;
+
+			// Arcs are measured clockwise from the current min
+			float lo = Rollup.wrap(aMin - azimuthMin[i]);
+			float hi = Math.max(lo + arc(aMin, aMax), arc(azimuthMin[i], azimuthMax[i]));
+			if (lo > 0)
+				lo = 0;
+			if (hi - lo >= 360)
+			{
+				azimuthMin[i] = 0;
+				azimuthMax[i] = 360;
+			}
+			else
+			{
+				float start = azimuthMin[i];
+				azimuthMin[i] = Rollup.normalize(start + lo);
+				azimuthMax[i] = Rollup.normalize(start + hi);
+			}
+			double rad = Math.toRadians(azimuthMean[i]);
+			double mrad = Math.toRadians(aMean);
+			azimuthMean[i] = Rollup.normalize((float) Math.toDegrees(Math.atan2(c * Math.sin(rad) + n * Math.sin(mrad), c * Math.cos(rad) + n * Math.cos(mrad))));
+
+			if (pMin < pitchMin[i])
+				pitchMin[i] = pMin;
+			if (pMax > pitchMax[i])
+				pitchMax[i] = pMax;
+			pitchMean[i] = (pitchMean[i] * c + pMean * n) / (c + n);
+			if (rMin < rollMin[i])
+				rollMin[i] = rMin;
+			if (rMax > rollMax[i])
+				rollMax[i] = rMax;
+			rollMean[i] = (rollMean[i] * c + rMean * n) / (c + n);
+		}
+
+		private static float arc(float min, float max)
+		{
+			float arc = max - min;
+			return arc < 0 ? arc + 360 : arc;
+		}
+	}
+
+	/**
+	 * Accumulates samples of one time bucket. Azimuth extremes are tracked as
+	 * deviations from the first sample to stay correct across north.
+	 */
+	private static class Rollup
+	{
+		final long period;
+		long bucket = -1;
+		int count;
+		float azimuthReference;
+		float azimuthMinDelta;
+		float azimuthMaxDelta;
+		double azimuthSin;
+		double azimuthCos;
+		float pitchMin;
+		float pitchMax;
+		double pitchSum;
+		float rollMin;
+		float rollMax;
+		double rollSum;
+		// Bucket was restored from the last record, which is to be overwritten
+		boolean resumed;
+
+		Rollup(long period)
+		{
+			this.period = period;
+		}
+
+		/**
+		 * Restores bucket from the last record of segment, so that samples
+		 * of the same bucket logged after reopen are accumulated into it.
+		 */
+		void resume(Segment segment) throws IOException
+		{
+			if (segment.records == 0)
+				return;
+			ByteBuffer record = ByteBuffer.allocate(ROLLUP_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			segment.channel.read(record, (segment.records - 1) * segment.recordSize);
+			long time = record.getLong(0);
+			if (time % period != 0)
+				return;
+			bucket = time / period;
+			count = record.getInt(8);
+			azimuthReference = record.getFloat(12);
+			float max = record.getFloat(16);
+			azimuthMinDelta = 0;
+			azimuthMaxDelta = max < azimuthReference ? max - azimuthReference + 360 : max - azimuthReference;
+			double rad = Math.toRadians(record.getFloat(20));
+			azimuthSin = Math.sin(rad) * count;
+			azimuthCos = Math.cos(rad) * count;
+			pitchMin = record.getFloat(24);
+			pitchMax = record.getFloat(28);
+			pitchSum = (double) record.getFloat(32) * count;
+			rollMin = record.getFloat(36);
+			rollMax = record.getFloat(40);
+			rollSum = (double) record.getFloat(44) * count;
+			resumed = true;
+		}
+
+		void add(long time, float azimuth, float pitch, float roll, Segment segment)
+		{
+			long b = time / period;
+			if (b != bucket)
+			{
+				if (count > 0)
+					write(segment);
+				bucket = b;
+				count = 0;
+				azimuthReference = azimuth;
+				azimuthMinDelta = azimuthMaxDelta = 0;
+				azimuthSin = azimuthCos = 0;
+				pitchMin = pitchMax = pitch;
+				pitchSum = 0;
+				rollMin = rollMax = roll;
+				rollSum = 0;
+			}
+			count++;
+
+			float delta = wrap(azimuth - azimuthReference);
+			if (delta < azimuthMinDelta)
+				azimuthMinDelta = delta;
+			if (delta > azimuthMaxDelta)
+				azimuthMaxDelta = delta;
+			double rad = Math.toRadians(azimuth);
+			azimuthSin += Math.sin(rad);
+			azimuthCos += Math.cos(rad);
+
+			if (pitch < pitchMin)
+				pitchMin = pitch;
+			if (pitch > pitchMax)
+				pitchMax = pitch;
+			pitchSum += pitch;
+			if (roll < rollMin)
+				rollMin = roll;
+			if (roll > rollMax)
+				rollMax = roll;
+			rollSum += roll;
+		}
+
+		void write(Segment segment)
+		{
+			if (resumed)
+			{
+				// Nothing else writes to segment, so it is not mapped yet
+				// and the window is mapped over the restored record
+				segment.records--;
+				resumed = false;
+			}
+			if (!segment.reserve())
+				return;
+			float mean = (float) Math.toDegrees(Math.atan2(azimuthSin, azimuthCos));
+			segment.buffer.putLong(bucket * period);
+			segment.buffer.putInt(count);
+			segment.buffer.putFloat(normalize(azimuthReference + azimuthMinDelta));
+			segment.buffer.putFloat(normalize(azimuthReference + azimuthMaxDelta));
+			segment.buffer.putFloat(normalize(mean));
+			segment.buffer.putFloat(pitchMin);
+			segment.buffer.putFloat(pitchMax);
+			segment.buffer.putFloat((float) (pitchSum / count));
+			segment.buffer.putFloat(rollMin);
+			segment.buffer.putFloat(rollMax);
+			segment.buffer.putFloat((float) (rollSum / count));
+			segment.commit();
+			count = 0;
+		}
+
+		static float wrap(float delta)
+		{
+			if (delta > 180)
+				delta -= 360;
+			else if (delta < -180)
+				delta += 360;
+			return delta;
+		}
+
+		static float normalize(float azimuth)
+		{
+			if (azimuth < 0)
+				azimuth += 360;
+			else if (azimuth >= 360)
+				azimuth -= 360;
+			return azimuth;
+		}
+	}
+
+	/**
+	 * Log file of fixed size records appended through a sliding memory-mapped window.
+	 */
+	private static class Segment
+	{
+		final int recordSize;
+		final long maxRecords;
+		final RandomAccessFile file;
+		final FileChannel channel;
+		final ByteBuffer timeBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		MappedByteBuffer buffer;
+		long records;
+		long mapped;
+		boolean failed;
+
+		Segment(File path, int recordSize, long maxRecords) throws IOException
+		{
+			this.recordSize = recordSize;
+			this.maxRecords = maxRecords;
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			records = channel.size() / recordSize;
+			// Mapped window grows file ahead of data, if session was killed
+			// before close() the tail is zero filled
+			long lo = 0;
+			long hi = records;
+			while (lo < hi)
+			{
+				long mid = (lo + hi) >>> 1;
+				if (readTime(mid) != 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			records = lo;
+			channel.truncate(records * recordSize);
+		}
+
+		/**
+		 * Ensures there is room for one more record in mapped window.
+		 */
+		boolean reserve()
+		{
+			if (failed)
+				return false;
+			if (buffer != null && buffer.remaining() >= recordSize)
+				return true;
+			try
+			{
+				long position = records * recordSize;
+				int size = (MAP_CHUNK / recordSize) * recordSize;
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				mapped = position + size;
+				return true;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				failed = true;
+				return false;
+			}
+		}
+
+		void commit()
+		{
+			records++;
+		}
+
+		/**
+		 * Drops the older half of records if segment has reached its limit.
+		 */
+		void trim()
+		{
+			if (maxRecords == 0 || records < maxRecords || failed)
+				return;
+			long keep = maxRecords / 2;
+			long end = records * recordSize;
+			long source = end - keep * recordSize;
+			long target = 0;
+			try
+			{
+				if (buffer != null)
+					buffer.force();
+				buffer = null;
+				ByteBuffer chunk = ByteBuffer.allocate(COPY_CHUNK);
+				while (source < end)
+				{
+					chunk.clear();
+					if (end - source < COPY_CHUNK)
+						chunk.limit((int) (end - source));
+					int n = channel.read(chunk, source);
+					source += n;
+					chunk.flip();
+					while (chunk.hasRemaining())
+						target += channel.write(chunk, target);
+				}
+				records = keep;
+				channel.truncate(records * recordSize);
+				mapped = records * recordSize;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				failed = true;
+			}
+		}
+
+		long getFirstTime()
+		{
+			try
+			{
+				return readTime(0);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return 0;
+			}
+		}
+
+		/**
+		 * Returns index of the first record with time not less then given.
+		 */
+		long search(long time)
+		{
+			long lo = 0;
+			long hi = records;
+			try
+			{
+				while (lo < hi)
+				{
+					long mid = (lo + hi) >>> 1;
+					if (readTime(mid) < time)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			return lo;
+		}
+
+		private long readTime(long index) throws IOException
+		{
+			timeBuffer.clear();
+			channel.read(timeBuffer, index * recordSize);
+			return timeBuffer.getLong(0);
+		}
+
+		void close()
+		{
+			try
+			{
+				if (buffer != null)
+					buffer.force();
+				buffer = null;
+				// Cut unused tail of the last mapped window
+				if (mapped > records * recordSize)
+					channel.truncate(records * recordSize);
+				file.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Angle math of heading pipeline. Functions return degrees and either call
+ * java.lang.Math or read lookup tables with linear interpolation, the mode
+ * is switched at runtime. Table errors, as measured against double precision
+ * results over the whole argument range:
+ * <ul>
+ * <li>sin, cos: 1024 steps per turn, below 5e-6 (absolute)</li>
+ * <li>atan2: 512 steps per octant, below 4e-5 degree</li>
+ * <li>asin: computed through atan2, below 6e-5 degree</li>
+ * </ul>
+ * That is far below sensor noise and display resolution of 0.1 degree.
+ */
+public final class HeadingMath
+{
+	private static final int SIN_SIZE = 1024;
+	private static final float SIN_SCALE = SIN_SIZE / 360f;
+	private static final int ATAN_SIZE = 512;
+
+	private static final float[] sinTable = new float[SIN_SIZE + 1];
+	private static final float[] atanTable = new float[ATAN_SIZE + 1];
+
+	private static volatile boolean tables;
+
+	static
+	{
+		for (int i = 0; i <= SIN_SIZE; i++)
+			sinTable[i] = (float) Math.sin(2 * Math.PI * i / SIN_SIZE);
+		for (int i = 0; i <= ATAN_SIZE; i++)
+			atanTable[i] = (float) Math.toDegrees(Math.atan((double) i / ATAN_SIZE));
+	}
+
+	private HeadingMath()
+	{
+	}
+
+	/**
+	 * Selects lookup tables instead of java.lang.Math, for devices with slow
+	 * floating point.
+	 */
+	public static void setTables(boolean tables)
+	{
+		HeadingMath.tables = tables;
+	}
+
+	public static boolean isTables()
+	{
+		return tables;
+	}
+
+	public static float sin(float degrees)
+	{
+		if (!tables)
+			return (float) Math.sin(Math.toRadians(degrees));
+		return sinTable(degrees * SIN_SCALE);
+	}
+
+	public static float cos(float degrees)
+	{
+		if (!tables)
+			return (float) Math.cos(Math.toRadians(degrees));
+		return sinTable(degrees * SIN_SCALE + SIN_SIZE / 4);
+	}
+
+	/**
+	 * Returns angle of vector (x, y) from x axis in degrees, -180 to 180.
+	 */
+	public static float atan2(float y, float x)
+	{
+		if (!tables)
+			return (float) Math.toDegrees(Math.atan2(y, x));
+
+		float ax = x < 0 ? -x : x;
+		float ay = y < 0 ? -y : y;
+		if (ax == 0 && ay == 0)
+			return 0;
+		float a;
+		if (ay <= ax)
+			a = atanTable(ay / ax);
+		else
+			a = 90 - atanTable(ax / ay);
+		if (x < 0)
+			a = 180 - a;
+		return y < 0 ? -a : a;
+	}
+
+	/**
+	 * Returns arc sine in degrees, argument is clamped to [-1, 1].
+	 */
+	public static float asin(float v)
+	{
+		if (v > 1)
+			v = 1;
+		else if (v < -1)
+			v = -1;
+		if (!tables)
+			return (float) Math.toDegrees(Math.asin(v));
+		// Derivative of asin is unbounded at the ends, atan2 is not
+		return atan2(v, (float) Math.sqrt(1 - v * v));
+	}
+
+	/**
+	 * Brings angle difference to -180 to 180 range, argument should be
+	 * within one turn.
+	 */
+	public static float wrap180(float degrees)
+	{
+		if (degrees > 180)
+			return degrees - 360;
+		if (degrees < -180)
+			return degrees + 360;
+		return degrees;
+	}
+
+	private static float sinTable(float x)
+	{
+		int i = (int) x;
+		if (x < i)
+			i--;
+		float f = x - i;
+		i &= SIN_SIZE - 1;
+		float v = sinTable[i];
+		return v + f * (sinTable[i + 1] - v);
+	}
+
+	private static float atanTable(float t)
+	{
+		float x = t * ATAN_SIZE;
+		int i = (int) x;
+		if (i >= ATAN_SIZE)
+			return atanTable[ATAN_SIZE];
+		float v = atanTable[i];
+		return v + (x - i) * (atanTable[i + 1] - v);
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.view.Display;
+import android.view.WindowManager;
+
+/**
+ * Sensor pipeline shared by all compass consumers. Sensors are registered
+ * while there is at least one listener.
+ */
+public class HeadingProvider implements SampleProcessor.OnAttitudeListener
+{
+	public interface OnHeadingChangedListener
+	{
+		/**
+		 * Called on every attitude update. Attitude object is reused, angles
+		 * should be read before returning.
+		 */
+		public void onHeadingChanged(Attitude attitude);
+	}
+
+	private static final long ROTATION_CHECK_INTERVAL = 500000000L;
+
+	private static HeadingProvider instance;
+
+	private final ArrayList<OnHeadingChangedListener> listeners = new ArrayList<OnHeadingChangedListener>();
+	private final SampleProcessor processor;
+	private final DeviceSensorSource source;
+	private final SensorDiagnostics diagnostics = new SensorDiagnostics();
+	private boolean running;
+	private boolean batching;
+
+	private float[] publishedAccelerometer;
+	private float[] publishedMagnetic;
+
+	private Display display;
+	private long rotationChecked;
+
+	private final Handler handler;
+
+	public static synchronized HeadingProvider getInstance(Context context)
+	{
+		if (instance == null)
+			instance = new HeadingProvider(context.getApplicationContext());
+		return instance;
+	}
+
+	private HeadingProvider(Context context)
+	{
+		handler = new Handler(context.getMainLooper());
+		display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+		processor = new SampleProcessor(this);
+		source = new DeviceSensorSource(context);
+		source.setDiagnostics(diagnostics);
+	}
+
+	public void addListener(OnHeadingChangedListener listener)
+	{
+		if (listeners.contains(listener))
+			return;
+		listeners.add(listener);
+		if (listeners.size() == 1)
+			start();
+	}
+
+	public void removeListener(OnHeadingChangedListener listener)
+	{
+		if (listeners.remove(listener) && listeners.isEmpty())
+			stop();
+	}
+
+	/**
+	 * Returns last known attitude. Returned object is updated in place.
+	 */
+	public Attitude getAttitude()
+	{
+		return processor.getAttitude();
+	}
+
+	/**
+	 * Returns raw accelerometer vector the current attitude was computed from.
+	 * Valid only within listener callback.
+	 */
+	public float[] getAccelerometerValues()
+	{
+		return publishedAccelerometer;
+	}
+
+	/**
+	 * Returns raw magnetic field vector (uT) the current attitude was computed
+	 * from. Valid only within listener callback.
+	 */
+	public float[] getMagneticValues()
+	{
+		return publishedMagnetic;
+	}
+
+	/**
+	 * Re-reads display rotation. It is also polled periodically while sensors
+	 * are running, so rotation is picked up without activity restart.
+	 */
+	public void updateDisplayRotation()
+	{
+		processor.getAttitude().setDisplayRotation(display.getOrientation());
+	}
+
+	public static boolean isBatchingSupported()
+	{
+		return DeviceSensorSource.isBatchingSupported();
+	}
+
+	/**
+	 * Enables delivery of sensor events in hardware batched bursts, if
+	 * supported by the platform.
+	 */
+	public void setBatching(boolean batching)
+	{
+		batching = batching && isBatchingSupported();
+		if (this.batching == batching)
+			return;
+		this.batching = batching;
+		restart();
+	}
+
+	/**
+	 * Returns cadence statistics of device sensors.
+	 */
+	public SensorDiagnostics getDiagnostics()
+	{
+		return diagnostics;
+	}
+
+	private void restart()
+	{
+		if (running)
+		{
+			stop();
+			start();
+		}
+	}
+
+	private void start()
+	{
+		updateDisplayRotation();
+		processor.setBatching(batching, scheduleBurst);
+		source.start(sampleListener, batching);
+		running = true;
+	}
+
+	private void stop()
+	{
+		source.stop();
+		running = false;
+		handler.removeCallbacks(processBurst);
+		processor.reset();
+	}
+
+	private final SensorSource.SampleListener sampleListener = new SensorSource.SampleListener() {
+		@Override
+		public void onSample(int sensor, long timestamp, float x, float y, float z)
+		{
+			if (timestamp - rotationChecked > ROTATION_CHECK_INTERVAL)
+			{
+				updateDisplayRotation();
+				rotationChecked = timestamp;
+			}
+			processor.onSample(sensor, timestamp, x, y, z);
+		}
+	};
+
+	@Override
+	public void onAttitude(Attitude attitude, float[] accelerometer, float[] magnetic)
+	{
+		publishedAccelerometer = accelerometer;
+		publishedMagnetic = magnetic;
+		for (int i = listeners.size() - 1; i >= 0; i--)
+			listeners.get(i).onHeadingChanged(attitude);
+	}
+
+	// Burst is delivered in one looper pass, posted task runs after it
+	private final Runnable scheduleBurst = new Runnable() {
+		@Override
+		public void run()
+		{
+			handler.post(processBurst);
+		}
+	};
+
+	private final Runnable processBurst = new Runnable() {
+		@Override
+		public void run()
+		{
+			processor.processBurst();
+		}
+	};
+}
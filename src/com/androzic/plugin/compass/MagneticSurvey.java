@@ -0,0 +1,237 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.hardware.GeomagneticField;
+import android.location.Location;
+
+/**
+ * Magnetic anomaly survey. Every attitude update is combined with the last
+ * position fix and aggregated into survey grid: deviation of field strength
+ * from the world magnetic model, dip angle and, while moving, difference
+ * between compass heading and GPS course.
+ */
+public class MagneticSurvey implements HeadingProvider.OnHeadingChangedListener
+{
+	public static final int CHANNEL_MAGNITUDE = 0;
+	public static final int CHANNEL_DIP = 1;
+	public static final int CHANNEL_HEADING = 2;
+	private static final int CHANNELS = 3;
+
+	/** About 11 m along meridian */
+	private static final double CELL_SIZE = 0.0001;
+	/** Course is considered reliable above this speed, m/s */
+	private static final float MIN_SPEED = 1f;
+	private static final int MAX_IMAGE_SIZE = 1024;
+	private static final long MODEL_INTERVAL = 60000;
+
+	private final HeadingProvider headingProvider;
+	private final SurveyGrid grid;
+
+	private boolean hasPosition;
+	private double latitude;
+	private double longitude;
+	private float declination;
+	private float modelStrength;
+	private long modelTime;
+	private float course = Float.NaN;
+	private long sampleCount;
+
+	public MagneticSurvey(HeadingProvider headingProvider, File directory) throws IOException
+	{
+		this.headingProvider = headingProvider;
+		grid = new SurveyGrid(directory, CHANNELS, CELL_SIZE);
+	}
+
+	/**
+	 * Starts new survey, data left by previous one is removed.
+	 */
+	public synchronized void start()
+	{
+		grid.clear();
+		sampleCount = 0;
+		headingProvider.addListener(this);
+	}
+
+	public synchronized void stop()
+	{
+		headingProvider.removeListener(this);
+		grid.close();
+	}
+
+	public synchronized long getSampleCount()
+	{
+		return sampleCount;
+	}
+
+	public synchronized void setLocation(Location location)
+	{
+		latitude = location.getLatitude();
+		longitude = location.getLongitude();
+		if (!hasPosition || location.getTime() - modelTime > MODEL_INTERVAL)
+		{
+			// Model changes slowly, there is no need to recalculate it on every fix
+			modelTime = location.getTime();
+			GeomagneticField field = new GeomagneticField((float) latitude, (float) longitude, 0f, location.getTime());
+			declination = field.getDeclination();
+			modelStrength = field.getFieldStrength() / 1000f;
+		}
+		course = location.hasBearing() && location.getSpeed() > MIN_SPEED ? location.getBearing() : Float.NaN;
+		hasPosition = true;
+	}
+
+	@Override
+	public synchronized void onHeadingChanged(Attitude attitude)
+	{
+		if (!hasPosition)
+			return;
+
+		float[] m = headingProvider.getMagneticValues();
+		float[] a = headingProvider.getAccelerometerValues();
+
+		float strength = (float) Math.sqrt(m[0] * m[0] + m[1] * m[1] + m[2] * m[2]);
+		float gravity = (float) Math.sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+		if (strength == 0 || gravity == 0)
+			return;
+		float up = (m[0] * a[0] + m[1] * a[1] + m[2] * a[2]) / (strength * gravity);
+		float dip = (float) Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, -up))));
+
+		float residual = Float.NaN;
+		if (!Float.isNaN(course))
+		{
+			residual = attitude.getAzimuth() + declination - course;
+			if (residual > 180)
+				residual -= 360;
+			else if (residual < -180)
+				residual += 360;
+		}
+
+		grid.add(latitude, longitude, CHANNEL_MAGNITUDE, strength - modelStrength);
+		grid.add(latitude, longitude, CHANNEL_DIP, dip);
+		grid.add(latitude, longitude, CHANNEL_HEADING, residual);
+		sampleCount++;
+	}
+
+	/**
+	 * Renders mean values of the channel to PNG file, north up, one pixel per
+	 * cell (or per block of cells for large areas), blue for low and red for
+	 * high values. Survey is locked only while tiles in memory are flushed,
+	 * grid is read from tile files, so this can be called from background
+	 * thread while survey is running.
+	 *
+	 * @return false if there is no data
+	 */
+	public boolean exportHeatMap(File file, int channel) throws IOException
+	{
+		int[] size = new int[2];
+		synchronized (this)
+		{
+			grid.flush();
+		}
+		int[] pixels = renderHeatMap(channel, size);
+		if (pixels == null)
+			return false;
+
+		int width = size[0];
+		int height = size[1];
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		}
+		finally
+		{
+			out.close();
+			bitmap.recycle();
+		}
+		return true;
+	}
+
+	private int[] renderHeatMap(final int channel, int[] size) throws IOException
+	{
+		final long[] bounds = new long[] { Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE };
+		final float[] range = new float[] { Float.MAX_VALUE, -Float.MAX_VALUE };
+		grid.visit(new SurveyGrid.CellVisitor() {
+			@Override
+			public void visit(long cx, long cy, int c, int count, float mean, float variance)
+			{
+				if (c != channel)
+					return;
+				bounds[0] = Math.min(bounds[0], cx);
+				bounds[1] = Math.min(bounds[1], cy);
+				bounds[2] = Math.max(bounds[2], cx);
+				bounds[3] = Math.max(bounds[3], cy);
+				range[0] = Math.min(range[0], mean);
+				range[1] = Math.max(range[1], mean);
+			}
+		});
+		if (bounds[0] > bounds[2])
+			return null;
+
+		long cellsX = bounds[2] - bounds[0] + 1;
+		long cellsY = bounds[3] - bounds[1] + 1;
+		final int step = (int) ((Math.max(cellsX, cellsY) + MAX_IMAGE_SIZE - 1) / MAX_IMAGE_SIZE);
+		final int width = (int) ((cellsX + step - 1) / step);
+		final int height = (int) ((cellsY + step - 1) / step);
+		final int[] pixels = new int[width * height];
+		final float span = range[1] > range[0] ? range[1] - range[0] : 1;
+
+		grid.visit(new SurveyGrid.CellVisitor() {
+			@Override
+			public void visit(long cx, long cy, int c, int count, float mean, float variance)
+			{
+				if (c != channel)
+					return;
+				int x = (int) ((cx - bounds[0]) / step);
+				int y = height - 1 - (int) ((cy - bounds[1]) / step);
+				pixels[y * width + x] = heatColor((mean - range[0]) / span);
+			}
+		});
+		size[0] = width;
+		size[1] = height;
+		return pixels;
+	}
+
+	private static int heatColor(float v)
+	{
+		int r, g, b;
+		if (v < 0.5f)
+		{
+			r = 0;
+			g = (int) (510 * v);
+			b = 255 - g;
+		}
+		else
+		{
+			g = (int) (510 * (1 - v));
+			r = 255 - g;
+			b = 0;
+		}
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+}
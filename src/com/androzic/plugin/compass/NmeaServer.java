@@ -0,0 +1,539 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Streams heading as NMEA 0183 HDM, HDG and XDR sentences to TCP clients and
+ * as UDP datagrams. By default server listens on loopback and sends
+ * datagrams to loopback, so only apps on the device receive the data;
+ * network mode listens on all interfaces and broadcasts to local network.
+ * Runs on its own thread with a single selector. Sentences
+ * are encoded once per tick into shared buffers and sent to every client
+ * with one gathered write. Client that has not taken previous tick data by
+ * the next tick is disconnected, so slow clients never hold back others.
+ */
+public class NmeaServer
+{
+	public static final int DEFAULT_PORT = 10110;
+
+	private static final int MAX_CLIENTS = 256;
+	private static final int MAX_SENTENCE = 82;
+	private static final int SENTENCES = 3;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final int port;
+	private final long period;
+	private final boolean network;
+
+	private final Object lock = new Object();
+	private boolean hasAttitude;
+	private float azimuth;
+	private float pitch;
+	private float roll;
+	private float variation = Float.NaN;
+
+	private final byte[] line = new byte[MAX_SENTENCE];
+	private final ByteBuffer[] sentences = new ByteBuffer[SENTENCES];
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_SENTENCE * SENTENCES);
+	private final ByteBuffer discard = ByteBuffer.allocateDirect(256);
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private DatagramChannel datagramChannel;
+	private InetSocketAddress datagramAddress;
+	private Thread thread;
+	private volatile boolean running;
+
+	private volatile int clientCount;
+	private volatile long droppedClients;
+	private volatile long sentBytes;
+	private volatile long ticks;
+
+	private static class Client
+	{
+		final SocketChannel channel;
+		final ByteBuffer[] views = new ByteBuffer[SENTENCES];
+
+		Client(SocketChannel channel, ByteBuffer[] sentences)
+		{
+			this.channel = channel;
+			// New client starts receiving from next tick, nothing is pending
+			for (int i = 0; i < SENTENCES; i++)
+			{
+				views[i] = sentences[i].duplicate();
+				views[i].position(views[i].limit());
+			}
+		}
+
+		boolean hasRemaining()
+		{
+			for (ByteBuffer view : views)
+				if (view.hasRemaining())
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * @param port TCP port to listen on and UDP port to send to, zero for any
+	 *            free TCP port without datagrams
+	 * @param rate sentences groups per second
+	 * @param network true to accept connections from other hosts and
+	 *            broadcast datagrams, false to serve only local apps
+	 */
+	public NmeaServer(int port, int rate, boolean network)
+	{
+		this.port = port;
+		this.period = 1000000000L / rate;
+		this.network = network;
+		for (int i = 0; i < SENTENCES; i++)
+		{
+			sentences[i] = ByteBuffer.allocateDirect(MAX_SENTENCE);
+			sentences[i].limit(0);
+		}
+	}
+
+	public void start() throws IOException
+	{
+		selector = Selector.open();
+		try
+		{
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			// Null address binds to all interfaces
+			InetAddress address = network ? null : InetAddress.getByName("127.0.0.1");
+			serverChannel.socket().bind(new InetSocketAddress(address, port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			if (port != 0)
+			{
+				datagramChannel = DatagramChannel.open();
+				datagramChannel.configureBlocking(false);
+				if (network)
+				{
+					datagramChannel.socket().setBroadcast(true);
+					datagramAddress = new InetSocketAddress("255.255.255.255", port);
+				}
+				else
+				{
+					datagramAddress = new InetSocketAddress(address, port);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			close(serverChannel);
+			close(datagramChannel);
+			selector.close();
+			throw e;
+		}
+
+		running = true;
+		thread = new Thread("NmeaServer") {
+			@Override
+			public void run()
+			{
+				serve();
+			}
+		};
+		thread.start();
+	}
+
+	public void stop()
+	{
+		running = false;
+		if (thread == null)
+			return;
+		selector.wakeup();
+		boolean retry = true;
+		while (retry)
+		{
+			try
+			{
+				thread.join();
+				retry = false;
+			}
+			catch (InterruptedException e)
+			{
+			}
+		}
+		thread = null;
+	}
+
+	public boolean isNetwork()
+	{
+		return network;
+	}
+
+	/**
+	 * Returns actual TCP port, useful when server was started on port zero.
+	 */
+	public int getLocalPort()
+	{
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Called from sensor pipeline, only stores the values.
+	 */
+	public void setAttitude(float azimuth, float pitch, float roll)
+	{
+		synchronized (lock)
+		{
+			this.azimuth = azimuth;
+			this.pitch = pitch;
+			this.roll = roll;
+			hasAttitude = true;
+		}
+	}
+
+	/**
+	 * Sets magnetic variation reported in HDG, east positive. NaN if unknown.
+	 */
+	public void setVariation(float variation)
+	{
+		synchronized (lock)
+		{
+			this.variation = variation;
+		}
+	}
+
+	public int getClientCount()
+	{
+		return clientCount;
+	}
+
+	public long getDroppedClientCount()
+	{
+		return droppedClients;
+	}
+
+	public long getSentBytes()
+	{
+		return sentBytes;
+	}
+
+	public long getTickCount()
+	{
+		return ticks;
+	}
+
+	private void serve()
+	{
+		long nextTick = System.nanoTime();
+		try
+		{
+			while (running)
+			{
+				long wait = (nextTick - System.nanoTime()) / 1000000;
+				if (wait > 0)
+					selector.select(wait);
+				else
+					selector.selectNow();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						service(key);
+				}
+
+				long now = System.nanoTime();
+				if (now >= nextTick)
+				{
+					if (encode())
+						broadcast();
+					ticks++;
+					nextTick += period;
+					// Do not try to catch up after stall
+					if (nextTick < now)
+						nextTick = now + period;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+				close(key.channel());
+			close(datagramChannel);
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+			}
+			clientCount = 0;
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		if (clientCount >= MAX_CLIENTS)
+		{
+			close(channel);
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Client(channel, sentences));
+		clientCount++;
+	}
+
+	private void service(SelectionKey key)
+	{
+		Client client = (Client) key.attachment();
+		try
+		{
+			if (key.isReadable())
+			{
+				// Input is ignored, read only to notice disconnect
+				discard.clear();
+				if (client.channel.read(discard) < 0)
+				{
+					drop(key, false);
+					return;
+				}
+			}
+			if (key.isValid() && key.isWritable())
+			{
+				sentBytes += client.channel.write(client.views);
+				if (!client.hasRemaining())
+					key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		catch (IOException e)
+		{
+			drop(key, false);
+		}
+	}
+
+	private void broadcast()
+	{
+		for (SelectionKey key : selector.keys())
+		{
+			Object attachment = key.attachment();
+			if (!(attachment instanceof Client) || !key.isValid())
+				continue;
+			Client client = (Client) attachment;
+			if (client.hasRemaining())
+			{
+				drop(key, true);
+				continue;
+			}
+			for (int i = 0; i < SENTENCES; i++)
+			{
+				client.views[i].limit(sentences[i].limit());
+				client.views[i].position(0);
+			}
+			try
+			{
+				sentBytes += client.channel.write(client.views);
+				if (client.hasRemaining())
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			catch (IOException e)
+			{
+				drop(key, false);
+			}
+		}
+
+		if (datagramChannel != null)
+		{
+			// One datagram carries all sentences, a lost packet loses whole tick
+			datagram.clear();
+			for (int i = 0; i < SENTENCES; i++)
+			{
+				datagram.put(sentences[i]);
+				sentences[i].position(0);
+			}
+			datagram.flip();
+			try
+			{
+				sentBytes += datagramChannel.send(datagram, datagramAddress);
+			}
+			catch (IOException e)
+			{
+				// Network may be down, keep serving TCP clients
+			}
+		}
+	}
+
+	private void drop(SelectionKey key, boolean slow)
+	{
+		key.cancel();
+		close(key.channel());
+		clientCount--;
+		if (slow)
+			droppedClients++;
+	}
+
+	private static void close(Channel channel)
+	{
+		if (channel == null)
+			return;
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Encodes current attitude into sentence buffers.
+	 *
+	 * @return false if there is nothing to send yet
+	 */
+	private boolean encode()
+	{
+		float a, p, r, v;
+		synchronized (lock)
+		{
+			if (!hasAttitude)
+				return false;
+			a = azimuth;
+			p = pitch;
+			r = roll;
+			v = variation;
+		}
+
+		// $HCHDM,x.x,M*hh
+		int n = begin("HCHDM");
+		n = appendDecimal(n, a, false);
+		n = append(n, ",M");
+		finish(sentences[0], n);
+
+		// $HCHDG,x.x,,,x.x,a*hh
+		n = begin("HCHDG");
+		n = appendDecimal(n, a, false);
+		n = append(n, ",,,");
+		if (!Float.isNaN(v))
+		{
+			n = appendDecimal(n, Math.abs(v), false);
+			n = append(n, v < 0 ? ",W" : ",E");
+		}
+		else
+		{
+			n = append(n, ",");
+		}
+		finish(sentences[1], n);
+
+		// $HCXDR,A,x.x,D,PTCH,A,x.x,D,ROLL*hh
+		n = begin("HCXDR");
+		n = append(n, "A,");
+		n = appendDecimal(n, p, true);
+		n = append(n, ",D,PTCH,A,");
+		n = appendDecimal(n, r, true);
+		n = append(n, ",D,ROLL");
+		finish(sentences[2], n);
+		return true;
+	}
+
+	private int begin(String address)
+	{
+		line[0] = '$';
+		int n = append(1, address);
+		line[n++] = ',';
+		return n;
+	}
+
+	private int append(int n, String s)
+	{
+		for (int i = 0; i < s.length(); i++)
+			line[n++] = (byte) s.charAt(i);
+		return n;
+	}
+
+	/**
+	 * Appends value with one decimal digit.
+	 */
+	private int appendDecimal(int n, float value, boolean signed)
+	{
+		int tenths = Math.round(value * 10);
+		if (!signed)
+			tenths = ((tenths % 3600) + 3600) % 3600;
+		if (tenths < 0)
+		{
+			line[n++] = '-';
+			tenths = -tenths;
+		}
+		int whole = tenths / 10;
+		int start = n;
+		do
+		{
+			line[n++] = (byte) ('0' + whole % 10);
+			whole /= 10;
+		}
+		while (whole > 0);
+		for (int i = start, j = n - 1; i < j; i++, j--)
+		{
+			byte c = line[i];
+			line[i] = line[j];
+			line[j] = c;
+		}
+		line[n++] = '.';
+		line[n++] = (byte) ('0' + tenths % 10);
+		return n;
+	}
+
+	private void finish(ByteBuffer buffer, int n)
+	{
+		int checksum = 0;
+		for (int i = 1; i < n; i++)
+			checksum ^= line[i];
+		line[n++] = '*';
+		line[n++] = (byte) HEX[(checksum >> 4) & 0xf];
+		line[n++] = (byte) HEX[checksum & 0xf];
+		line[n++] = '\r';
+		line[n++] = '\n';
+		buffer.clear();
+		buffer.put(line, 0, n);
+		buffer.flip();
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Draw surface that counts operations into frame statistics and passes them
+ * to target surface. Without target it serves as recording stub for plain
+ * JVM checks, bitmap sizes are then set explicitly and text widths are
+ * estimated from text size.
+ */
+public class RecordingSurface implements DrawSurface
+{
+	private final DrawSurface target;
+	private final FrameStats stats;
+	private final int[] bitmapWidths = new int[BITMAP_COUNT];
+	private final int[] bitmapHeights = new int[BITMAP_COUNT];
+	private final float[] textSizes = new float[PAINT_COUNT];
+	private int depth;
+	private int maxDepth;
+
+	public RecordingSurface(DrawSurface target, FrameStats stats)
+	{
+		this.target = target;
+		this.stats = stats;
+	}
+
+	public FrameStats getStats()
+	{
+		return stats;
+	}
+
+	public void setBitmapSize(int bitmap, int width, int height)
+	{
+		bitmapWidths[bitmap] = width;
+		bitmapHeights[bitmap] = height;
+	}
+
+	/**
+	 * Returns current save depth, it should be zero between frames.
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	@Override
+	public void save()
+	{
+		stats.transforms++;
+		depth++;
+		if (depth > maxDepth)
+			maxDepth = depth;
+		if (target != null)
+			target.save();
+	}
+
+	@Override
+	public void restore()
+	{
+		stats.transforms++;
+		depth--;
+		if (target != null)
+			target.restore();
+	}
+
+	@Override
+	public void translate(float dx, float dy)
+	{
+		stats.transforms++;
+		if (target != null)
+			target.translate(dx, dy);
+	}
+
+	@Override
+	public void scale(float sx, float sy)
+	{
+		stats.transforms++;
+		if (target != null)
+			target.scale(sx, sy);
+	}
+
+	@Override
+	public void rotate(float degrees)
+	{
+		stats.transforms++;
+		if (target != null)
+			target.rotate(degrees);
+	}
+
+	@Override
+	public void concat(float[] values)
+	{
+		stats.transforms++;
+		if (target != null)
+			target.concat(values);
+	}
+
+	@Override
+	public void drawColor(int color)
+	{
+		stats.draws++;
+		if (target != null)
+			target.drawColor(color);
+	}
+
+	@Override
+	public void drawCircle(float cx, float cy, float radius, int paint)
+	{
+		stats.draws++;
+		if (target != null)
+			target.drawCircle(cx, cy, radius, paint);
+	}
+
+	@Override
+	public void drawRect(float left, float top, float right, float bottom, int paint)
+	{
+		stats.draws++;
+		if (target != null)
+			target.drawRect(left, top, right, bottom, paint);
+	}
+
+	@Override
+	public void drawText(String text, float x, float y, int paint)
+	{
+		stats.texts++;
+		if (target != null)
+			target.drawText(text, x, y, paint);
+	}
+
+	@Override
+	public void drawText(char[] text, int index, int count, float x, float y, int paint)
+	{
+		stats.texts++;
+		if (target != null)
+			target.drawText(text, index, count, x, y, paint);
+	}
+
+	@Override
+	public void drawBitmap(int bitmap, float left, float top)
+	{
+		stats.bitmaps++;
+		if (target != null)
+			target.drawBitmap(bitmap, left, top);
+	}
+
+	@Override
+	public int getBitmapWidth(int bitmap)
+	{
+		return target != null ? target.getBitmapWidth(bitmap) : bitmapWidths[bitmap];
+	}
+
+	@Override
+	public int getBitmapHeight(int bitmap)
+	{
+		return target != null ? target.getBitmapHeight(bitmap) : bitmapHeights[bitmap];
+	}
+
+	@Override
+	public void setTextSize(int paint, float size)
+	{
+		textSizes[paint] = size;
+		if (target != null)
+			target.setTextSize(paint, size);
+	}
+
+	@Override
+	public void getTextWidths(char[] text, int index, int count, int paint, float[] widths)
+	{
+		if (target != null)
+		{
+			target.getTextWidths(text, index, count, paint, widths);
+			return;
+		}
+		for (int i = 0; i < count; i++)
+			widths[i] = textSizes[paint] * 0.6f;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.ArrayList;
+
+/**
+ * Single render thread that drives all attached compass surfaces. Thread is
+ * started with the first renderer and finishes when the last one is removed,
+ * unless scheduler is held, e.g. during configuration change.
+ */
+public class RenderScheduler
+{
+	public interface Renderer
+	{
+		/**
+		 * Draws one frame. Implementation must check under its own lock that it
+		 * is still attached to surface, see {@link RenderScheduler#remove}.
+		 *
+		 * @return false if surface was not available
+		 */
+		public boolean render();
+	}
+
+	/** Pause of the loop when no surface could be drawn, ms */
+	private static final long IDLE_DELAY = 16;
+
+	private static RenderScheduler instance;
+
+	private final ArrayList<Renderer> renderers = new ArrayList<Renderer>();
+	private Renderer[] snapshot = new Renderer[0];
+	private boolean changed;
+	private int holds;
+	private Thread thread;
+
+	public static synchronized RenderScheduler getInstance()
+	{
+		if (instance == null)
+			instance = new RenderScheduler();
+		return instance;
+	}
+
+	private RenderScheduler()
+	{
+	}
+
+	public void add(Renderer renderer)
+	{
+		synchronized (renderers)
+		{
+			if (renderers.contains(renderer))
+				return;
+			renderers.add(renderer);
+			changed = true;
+			renderers.notifyAll();
+			if (thread == null)
+			{
+				thread = new Thread(loop, "CompassRender");
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Removes renderer from the loop. Renderer can still be in the middle of
+	 * the frame when this method returns, so it should detach itself from
+	 * surface under the same lock it draws with.
+	 */
+	public void remove(Renderer renderer)
+	{
+		synchronized (renderers)
+		{
+			if (renderers.remove(renderer))
+				changed = true;
+		}
+	}
+
+	/**
+	 * Keeps render thread alive while there are no renderers.
+	 */
+	public void hold()
+	{
+		synchronized (renderers)
+		{
+			holds++;
+		}
+	}
+
+	public void release()
+	{
+		synchronized (renderers)
+		{
+			holds--;
+			renderers.notifyAll();
+		}
+	}
+
+	public int getRendererCount()
+	{
+		synchronized (renderers)
+		{
+			return renderers.size();
+		}
+	}
+
+	private final Runnable loop = new Runnable() {
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				synchronized (renderers)
+				{
+					if (renderers.isEmpty())
+					{
+						if (holds == 0)
+						{
+							thread = null;
+							return;
+						}
+						try
+						{
+							renderers.wait();
+						}
+						catch (InterruptedException e)
+						{
+						}
+						continue;
+					}
+					if (changed)
+					{
+						snapshot = renderers.toArray(new Renderer[renderers.size()]);
+						changed = false;
+					}
+				}
+				boolean drawn = false;
+				for (Renderer renderer : snapshot)
+					drawn |= renderer.render();
+				// lockCanvas() returns immediately when surface is not ready
+				if (!drawn)
+				{
+					try
+					{
+						Thread.sleep(IDLE_DELAY);
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,177 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+
+import com.androzic.library.R;
+
+/**
+ * Part of compass activity that survives configuration changes: sensor
+ * subscription, render thread, decoded needle, heading log, magnetic survey,
+ * NMEA output and waypoint index. Passed to the new activity instance as non-configuration instance,
+ * so only the surface is recreated on rotation.
+ */
+public class RetainedPipeline implements HeadingProvider.OnHeadingChangedListener
+{
+	private final Context context;
+	private final HeadingProvider headingProvider;
+	private final WaypointOverlay waypointOverlay;
+	private HeadingLog headingLog;
+	private MagneticSurvey survey;
+	private NmeaServer nmeaServer;
+
+	private long configurationChangeStart;
+
+	public RetainedPipeline(Context context)
+	{
+		this.context = context.getApplicationContext();
+
+		headingProvider = HeadingProvider.getInstance(this.context);
+		headingProvider.addListener(this);
+		RenderScheduler.getInstance().hold();
+		SharedBitmaps.acquire(this.context.getResources(), R.drawable.compass_needle);
+
+		waypointOverlay = new WaypointOverlay();
+	}
+
+	/**
+	 * Releases all held resources, called when activity is finally destroyed.
+	 */
+	public void release()
+	{
+		if (headingLog != null)
+		{
+			headingLog.close();
+			headingLog = null;
+		}
+		if (survey != null)
+		{
+			survey.stop();
+			survey = null;
+		}
+		if (nmeaServer != null)
+		{
+			nmeaServer.stop();
+			nmeaServer = null;
+		}
+		SharedBitmaps.release(R.drawable.compass_needle);
+		RenderScheduler.getInstance().release();
+		headingProvider.removeListener(this);
+	}
+
+	public HeadingProvider getHeadingProvider()
+	{
+		return headingProvider;
+	}
+
+	public WaypointOverlay getWaypointOverlay()
+	{
+		return waypointOverlay;
+	}
+
+	public void setLogging(boolean log) throws IOException
+	{
+		if (log && headingLog == null)
+		{
+			headingLog = new HeadingLog(new File(context.getFilesDir(), "headinglog"));
+			headingLog.start();
+		}
+		else if (!log && headingLog != null)
+		{
+			headingLog.close();
+			headingLog = null;
+		}
+	}
+
+	public void setSurvey(boolean enabled) throws IOException
+	{
+		if (enabled && survey == null)
+		{
+			survey = new MagneticSurvey(headingProvider, new File(context.getFilesDir(), "survey"));
+			survey.start();
+		}
+		else if (!enabled && survey != null)
+		{
+			survey.stop();
+			survey = null;
+		}
+	}
+
+	/**
+	 * Starts, restarts with new settings or stops NMEA output.
+	 *
+	 * @param network true to serve other hosts, false for local apps only
+	 */
+	public void setNmeaOutput(boolean enabled, int rate, boolean network) throws IOException
+	{
+		if (nmeaServer != null)
+		{
+			nmeaServer.stop();
+			nmeaServer = null;
+		}
+		if (enabled)
+		{
+			NmeaServer server = new NmeaServer(NmeaServer.DEFAULT_PORT, rate, network);
+			server.start();
+			nmeaServer = server;
+		}
+	}
+
+	public NmeaServer getNmeaServer()
+	{
+		return nmeaServer;
+	}
+
+	/**
+	 * Returns running magnetic survey or null.
+	 */
+	public MagneticSurvey getSurvey()
+	{
+		return survey;
+	}
+
+	/**
+	 * Marks the moment when configuration change started, used to measure
+	 * time to the first frame of recreated activity.
+	 */
+	public void setConfigurationChangeStart(long uptime)
+	{
+		configurationChangeStart = uptime;
+	}
+
+	public long getConfigurationChangeStart()
+	{
+		return configurationChangeStart;
+	}
+
+	@Override
+	public void onHeadingChanged(Attitude attitude)
+	{
+		if (headingLog != null)
+			headingLog.append(System.currentTimeMillis(), attitude.getAzimuth(), attitude.getPitch(), attitude.getRoll());
+		if (nmeaServer != null)
+			nmeaServer.setAttitude(attitude.getAzimuth(), attitude.getPitch(), attitude.getRoll());
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Turns raw sensor samples into attitude updates. Does not depend on Android
+ * framework, so the same code runs in the app and in stress harness.
+ *
+ * In batching mode sensor hub is allowed to deliver samples in bursts. Only
+ * the newest vector of each sensor is kept while burst is delivered, and
+ * attitude is published once after its last sample. Both modes publish
+ * attitude of the same raw vectors, batching changes update rate, not
+ * response.
+ */
+public class SampleProcessor implements SensorSource.SampleListener
+{
+	public interface OnAttitudeListener
+	{
+		/**
+		 * Called on every attitude update with raw vectors it was computed
+		 * from. Arrays are reused.
+		 */
+		public void onAttitude(Attitude attitude, float[] accelerometer, float[] magnetic);
+	}
+
+	private final OnAttitudeListener listener;
+	private final Attitude attitude = new Attitude();
+
+	private final float[] magneticValues = new float[3];
+	private final float[] accelerometerValues = new float[3];
+	private boolean hasMagnetic;
+	private boolean hasAccelerometer;
+
+	private boolean batching;
+	private boolean burstPending;
+	private long burstTimestamp;
+	private Runnable burstScheduler;
+
+	private long sampleCount;
+	private long publishCount;
+
+	public SampleProcessor(OnAttitudeListener listener)
+	{
+		this.listener = listener;
+	}
+
+	public Attitude getAttitude()
+	{
+		return attitude;
+	}
+
+	/**
+	 * Enables burst processing. Scheduler is run when the first sample of a
+	 * burst arrives, it should arrange {@link #processBurst()} to be called
+	 * on the same thread after the rest of the burst is delivered.
+	 */
+	public void setBatching(boolean batching, Runnable burstScheduler)
+	{
+		this.batching = batching;
+		this.burstScheduler = burstScheduler;
+		reset();
+	}
+
+	public long getSampleCount()
+	{
+		return sampleCount;
+	}
+
+	/**
+	 * Returns number of published attitude updates, in batching mode there is
+	 * one update per burst.
+	 */
+	public long getPublishCount()
+	{
+		return publishCount;
+	}
+
+	@Override
+	public void onSample(int sensor, long timestamp, float x, float y, float z)
+	{
+		sampleCount++;
+
+		float[] values;
+		if (sensor == SensorSource.MAGNETIC)
+		{
+			values = magneticValues;
+			hasMagnetic = true;
+		}
+		else
+		{
+			values = accelerometerValues;
+			hasAccelerometer = true;
+		}
+		values[0] = x;
+		values[1] = y;
+		values[2] = z;
+
+		if (batching)
+		{
+			burstTimestamp = timestamp;
+			if (!burstPending)
+			{
+				burstPending = true;
+				burstScheduler.run();
+			}
+			return;
+		}
+
+		if (!hasMagnetic || !hasAccelerometer)
+			return;
+
+		publish(accelerometerValues, magneticValues, timestamp);
+	}
+
+	/**
+	 * Publishes attitude of the newest vectors of a burst.
+	 */
+	public void processBurst()
+	{
+		if (!burstPending)
+			return;
+		burstPending = false;
+		if (hasMagnetic && hasAccelerometer)
+			publish(accelerometerValues, magneticValues, burstTimestamp);
+	}
+
+	/**
+	 * Drops partially collected data, called when sensors are restarted.
+	 */
+	public void reset()
+	{
+		hasMagnetic = false;
+		hasAccelerometer = false;
+		burstPending = false;
+	}
+
+	private void publish(float[] accelerometer, float[] magnetic, long timestamp)
+	{
+		if (attitude.update(accelerometer[0], accelerometer[1], accelerometer[2], magnetic[0], magnetic[1], magnetic[2], timestamp))
+		{
+			publishCount++;
+			listener.onAttitude(attitude, accelerometer, magnetic);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.Arrays;
+
+/**
+ * Cadence and health statistics of sensor event stream: rate, inter-arrival
+ * jitter, gaps, accuracy changes and share of events discarded as
+ * unreliable. Everything is kept in fixed-size rolling buffers, recording
+ * an event does not allocate.
+ */
+public class SensorDiagnostics
+{
+	public static final int WINDOW = 512;
+
+	private static final int ACCURACY_HISTORY = 32;
+	private static final int GAP_FACTOR = 3;
+	/** This many gaps in a row mean that sensor rate has changed */
+	private static final int GAP_REBASELINE = 8;
+	private static final String[] SENSOR_NAMES = { "Accelerometer", "Magnetometer" };
+	private static final String[] ACCURACY_NAMES = { "UNRELIABLE", "LOW", "MEDIUM", "HIGH" };
+
+	private static class Channel
+	{
+		String name;
+
+		final long[] intervals = new long[WINDOW];
+		int position;
+		int filled;
+		long lastTimestamp;
+		float averageInterval;
+		int consecutiveGaps;
+
+		long events;
+		long discarded;
+
+		long gaps;
+		long longestGap;
+		long lastGapTime;
+
+		final long[] accuracyTimes = new long[ACCURACY_HISTORY];
+		final int[] accuracies = new int[ACCURACY_HISTORY];
+		int accuracyPosition;
+		int accuracyFilled;
+		int accuracy = -1;
+
+		void reset()
+		{
+			position = 0;
+			filled = 0;
+			lastTimestamp = 0;
+			averageInterval = 0;
+			consecutiveGaps = 0;
+		}
+	}
+
+	private final Channel[] channels = new Channel[] { new Channel(), new Channel() };
+	private final long started = System.nanoTime();
+	private final long[] sorted = new long[WINDOW];
+
+	/**
+	 * Sets sensor description shown in report.
+	 */
+	public synchronized void setSensorName(int sensor, String name)
+	{
+		channels[sensor].name = name;
+	}
+
+	/**
+	 * Called when sensors are re-registered, interval across restart is not a
+	 * gap.
+	 */
+	public synchronized void restart()
+	{
+		for (Channel channel : channels)
+			channel.reset();
+	}
+
+	/**
+	 * Records sensor event.
+	 *
+	 * @param timestamp event timestamp, nanoseconds
+	 * @param accuracy event accuracy, SensorManager.SENSOR_STATUS_* constant
+	 * @param discarded true if event was not used
+	 */
+	public synchronized void onEvent(int sensor, long timestamp, int accuracy, boolean discarded)
+	{
+		Channel channel = channels[sensor];
+		channel.events++;
+		if (discarded)
+			channel.discarded++;
+		if (accuracy != channel.accuracy)
+			recordAccuracy(channel, accuracy);
+
+		if (channel.lastTimestamp != 0)
+		{
+			long interval = timestamp - channel.lastTimestamp;
+			if (interval < 0)
+				interval = 0;
+			channel.intervals[channel.position] = interval;
+			channel.position = (channel.position + 1) % WINDOW;
+			if (channel.filled < WINDOW)
+				channel.filled++;
+
+			if (channel.averageInterval > 0 && interval > GAP_FACTOR * channel.averageInterval)
+			{
+				channel.gaps++;
+				channel.lastGapTime = System.nanoTime();
+				if (interval > channel.longestGap)
+					channel.longestGap = interval;
+				// Gaps are excluded from average so that one long stall is not masked by the next,
+				// but a steady run of them is a slower rate, not stalls
+				channel.consecutiveGaps++;
+				if (channel.consecutiveGaps >= GAP_REBASELINE)
+				{
+					channel.averageInterval = interval;
+					channel.consecutiveGaps = 0;
+				}
+			}
+			else
+			{
+				channel.averageInterval = channel.averageInterval == 0 ? interval : channel.averageInterval + (interval - channel.averageInterval) / 16;
+				channel.consecutiveGaps = 0;
+			}
+		}
+		channel.lastTimestamp = timestamp;
+	}
+
+	public synchronized void onAccuracyChanged(int sensor, int accuracy)
+	{
+		Channel channel = channels[sensor];
+		if (accuracy != channel.accuracy)
+			recordAccuracy(channel, accuracy);
+	}
+
+	private void recordAccuracy(Channel channel, int accuracy)
+	{
+		channel.accuracy = accuracy;
+		channel.accuracyTimes[channel.accuracyPosition] = System.nanoTime();
+		channel.accuracies[channel.accuracyPosition] = accuracy;
+		channel.accuracyPosition = (channel.accuracyPosition + 1) % ACCURACY_HISTORY;
+		if (channel.accuracyFilled < ACCURACY_HISTORY)
+			channel.accuracyFilled++;
+	}
+
+	/**
+	 * Returns plain text report of all sensors.
+	 */
+	public synchronized String getReport()
+	{
+		long now = System.nanoTime();
+		StringBuilder report = new StringBuilder();
+		report.append("Sensor diagnostics, collected for ").append(seconds(now - started)).append(" s, window ").append(WINDOW).append(" intervals\n");
+		for (int i = 0; i < channels.length; i++)
+			appendChannel(report, i, now);
+		return report.toString();
+	}
+
+	private void appendChannel(StringBuilder report, int sensor, long now)
+	{
+		Channel channel = channels[sensor];
+		report.append('\n').append(SENSOR_NAMES[sensor]);
+		if (channel.name != null)
+			report.append(": ").append(channel.name);
+		report.append('\n');
+
+		report.append("  events: ").append(channel.events);
+		report.append(", discarded as unreliable: ").append(channel.discarded);
+		if (channel.events > 0)
+			report.append(" (").append(format(100f * channel.discarded / channel.events)).append("%)");
+		report.append('\n');
+
+		int n = channel.filled;
+		if (n > 0)
+		{
+			double sum = 0;
+			for (int i = 0; i < n; i++)
+				sum += channel.intervals[i];
+			double mean = sum / n;
+			double variance = 0;
+			for (int i = 0; i < n; i++)
+			{
+				double d = channel.intervals[i] - mean;
+				variance += d * d;
+			}
+			double jitter = Math.sqrt(variance / n);
+			System.arraycopy(channel.intervals, 0, sorted, 0, n);
+			Arrays.sort(sorted, 0, n);
+
+			report.append("  rate: ").append(format((float) (1e9 / mean))).append(" Hz");
+			report.append(", interval mean ").append(millis((long) mean));
+			report.append(", jitter ").append(millis((long) jitter));
+			report.append(", p50 ").append(millis(sorted[n / 2]));
+			report.append(", p95 ").append(millis(sorted[n * 95 / 100]));
+			report.append(", max ").append(millis(sorted[n - 1])).append(" ms\n");
+		}
+
+		report.append("  gaps (> ").append(GAP_FACTOR).append("x interval): ").append(channel.gaps);
+		if (channel.gaps > 0)
+		{
+			report.append(", longest ").append(millis(channel.longestGap)).append(" ms");
+			report.append(", last ").append(seconds(now - channel.lastGapTime)).append(" s ago");
+		}
+		report.append('\n');
+
+		report.append("  accuracy:");
+		if (channel.accuracyFilled == 0)
+			report.append(" unknown");
+		int first = (channel.accuracyPosition - channel.accuracyFilled + ACCURACY_HISTORY) % ACCURACY_HISTORY;
+		for (int k = 0; k < channel.accuracyFilled; k++)
+		{
+			int i = (first + k) % ACCURACY_HISTORY;
+			report.append(k == 0 ? " " : ", ").append(accuracyName(channel.accuracies[i])).append(" at -").append(seconds(now - channel.accuracyTimes[i])).append(" s");
+		}
+		report.append('\n');
+	}
+
+	private static String accuracyName(int accuracy)
+	{
+		return accuracy >= 0 && accuracy < ACCURACY_NAMES.length ? ACCURACY_NAMES[accuracy] : Integer.toString(accuracy);
+	}
+
+	private static String millis(long nanos)
+	{
+		return format(nanos / 1e6f);
+	}
+
+	private static long seconds(long nanos)
+	{
+		return nanos / 1000000000L;
+	}
+
+	private static String format(float value)
+	{
+		return String.valueOf(Math.round(value * 10) / 10f);
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Source of raw accelerometer and magnetometer samples for heading
+ * provider. Samples are delivered on the main thread.
+ */
+public interface SensorSource
+{
+	public static final int ACCELEROMETER = 0;
+	public static final int MAGNETIC = 1;
+
+	public interface SampleListener
+	{
+		/**
+		 * @param sensor ACCELEROMETER or MAGNETIC
+		 * @param timestamp sample time in nanoseconds
+		 */
+		public void onSample(int sensor, long timestamp, float x, float y, float z);
+	}
+
+	/**
+	 * Starts delivering samples to listener.
+	 *
+	 * @param batching allow sensor hub to deliver samples in bursts
+	 */
+	public void start(SampleListener listener, boolean batching);
+
+	public void stop();
+}
@@ -0,0 +1,68 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.util.HashMap;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Reference counted cache of decoded resource bitmaps. Bitmap is decoded on
+ * first acquire and recycled when the last holder releases it.
+ */
+public class SharedBitmaps
+{
+	private static class Entry
+	{
+		Bitmap bitmap;
+		int references;
+	}
+
+	private static final HashMap<Integer, Entry> bitmaps = new HashMap<Integer, Entry>();
+
+	public static synchronized Bitmap acquire(Resources resources, int id)
+	{
+		Entry entry = bitmaps.get(id);
+		if (entry == null)
+		{
+			entry = new Entry();
+			entry.bitmap = BitmapFactory.decodeResource(resources, id);
+			bitmaps.put(id, entry);
+		}
+		entry.references++;
+		return entry.bitmap;
+	}
+
+	public static synchronized void release(int id)
+	{
+		Entry entry = bitmaps.get(id);
+		if (entry == null)
+			return;
+		entry.references--;
+		if (entry.references == 0)
+		{
+			bitmaps.remove(id);
+			entry.bitmap.recycle();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lat/lon grid of running statistics (count, mean, variance) for several
+ * channels. Grid is split into square tiles, only a few recently used tiles
+ * are kept in memory, others are flushed to files and their storage is
+ * reused, so memory use does not depend on survey length or area. Tile
+ * files are replaced atomically, so they can be read by another thread.
+ */
+public class SurveyGrid
+{
+	public static final int TILE_SIZE = 64;
+	private static final int CELLS = TILE_SIZE * TILE_SIZE;
+	private static final int MAX_TILES = 8;
+
+	private final File directory;
+	private final int channels;
+	private final double cellSize;
+
+	private final LinkedHashMap<Long, Tile> tiles;
+	private final ArrayList<Tile> pool = new ArrayList<Tile>();
+	private final ByteBuffer ioBuffer;
+	private Tile lastTile;
+	private IOException error;
+
+	/**
+	 * Accumulators of one tile, Welford's running mean and sum of squared
+	 * deviations per cell and channel.
+	 */
+	public static class Tile
+	{
+		long key;
+		boolean dirty;
+		final int[] count;
+		final float[] mean;
+		final double[] m2;
+
+		Tile(int channels)
+		{
+			count = new int[CELLS * channels];
+			mean = new float[CELLS * channels];
+			m2 = new double[CELLS * channels];
+		}
+
+		void clear()
+		{
+			for (int i = 0; i < count.length; i++)
+			{
+				count[i] = 0;
+				mean[i] = 0;
+				m2[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param directory where flushed tiles are kept
+	 * @param channels number of aggregated values
+	 * @param cellSize cell size in degrees
+	 */
+	public SurveyGrid(File directory, int channels, double cellSize) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can not create survey directory: " + directory);
+
+		this.directory = directory;
+		this.channels = channels;
+		this.cellSize = cellSize;
+		ioBuffer = ByteBuffer.allocateDirect(4 + CELLS * channels * 20).order(ByteOrder.LITTLE_ENDIAN);
+
+		tiles = new LinkedHashMap<Long, Tile>(MAX_TILES * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest)
+			{
+				if (size() <= MAX_TILES)
+					return false;
+				Tile tile = eldest.getValue();
+				flush(tile);
+				if (lastTile == tile)
+					lastTile = null;
+				pool.add(tile);
+				return true;
+			}
+		};
+	}
+
+	public double getCellSize()
+	{
+		return cellSize;
+	}
+
+	public int getChannels()
+	{
+		return channels;
+	}
+
+	/**
+	 * Returns last I/O error, tiles failed to load or store are lost.
+	 */
+	public IOException getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Adds value to cell containing given point. NaN values are ignored.
+	 */
+	public void add(double latitude, double longitude, int channel, float value)
+	{
+		if (Float.isNaN(value))
+			return;
+
+		long cx = (long) Math.floor(longitude / cellSize);
+		long cy = (long) Math.floor(latitude / cellSize);
+		int tx = (int) Math.floor((double) cx / TILE_SIZE);
+		int ty = (int) Math.floor((double) cy / TILE_SIZE);
+		long key = tileKey(tx, ty);
+
+		Tile tile = lastTile;
+		if (tile == null || tile.key != key)
+		{
+			tile = getTile(key);
+			lastTile = tile;
+		}
+
+		int cell = (int) (cy - (long) ty * TILE_SIZE) * TILE_SIZE + (int) (cx - (long) tx * TILE_SIZE);
+		int i = cell * channels + channel;
+		int n = tile.count[i] + 1;
+		float delta = value - tile.mean[i];
+		tile.mean[i] += delta / n;
+		// Sum of squares grows with sample count, float would lose variance of long surveys
+		tile.m2[i] += (double) delta * (value - tile.mean[i]);
+		tile.count[i] = n;
+		tile.dirty = true;
+	}
+
+	/**
+	 * Writes all modified tiles to disk.
+	 */
+	public void flush()
+	{
+		for (Tile tile : tiles.values())
+			flush(tile);
+	}
+
+	/**
+	 * Visits all cells of tiles stored on disk, call {@link #flush()} first
+	 * to include data in memory. Tiles in memory are not touched, so visit
+	 * can run on another thread while data is added, only flush() has to be
+	 * synchronized with add(). Cell coordinates are given in cell units,
+	 * multiply by cell size to get degrees.
+	 */
+	public void visit(CellVisitor visitor) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(ioBuffer.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		String[] files = directory.list();
+		if (files == null)
+			return;
+		for (String name : files)
+		{
+			if (!name.startsWith("tile_") || !name.endsWith(".bin"))
+				continue;
+			String[] parts = name.substring(5, name.length() - 4).split("_");
+			if (parts.length != 2)
+				continue;
+			int tx, ty;
+			try
+			{
+				tx = Integer.parseInt(parts[0]);
+				ty = Integer.parseInt(parts[1]);
+			}
+			catch (NumberFormatException e)
+			{
+				continue;
+			}
+			RandomAccessFile raf;
+			try
+			{
+				raf = new RandomAccessFile(new File(directory, name), "r");
+			}
+			catch (FileNotFoundException e)
+			{
+				// Survey was cleared meanwhile
+				continue;
+			}
+			try
+			{
+				read(raf.getChannel(), buffer);
+			}
+			finally
+			{
+				raf.close();
+			}
+			int records = buffer.getInt();
+			for (int k = 0; k < records; k++)
+			{
+				int i = buffer.getInt();
+				int n = buffer.getInt();
+				float mean = buffer.getFloat();
+				double m2 = buffer.getDouble();
+				int cell = i / channels;
+				long cx = (long) tx * TILE_SIZE + cell % TILE_SIZE;
+				long cy = (long) ty * TILE_SIZE + cell / TILE_SIZE;
+				visitor.visit(cx, cy, i % channels, n, mean, n > 1 ? (float) (m2 / (n - 1)) : 0);
+			}
+		}
+	}
+
+	public interface CellVisitor
+	{
+		public void visit(long cx, long cy, int channel, int count, float mean, float variance);
+	}
+
+	/**
+	 * Flushes and drops all tiles from memory.
+	 */
+	public void close()
+	{
+		flush();
+		tiles.clear();
+		pool.clear();
+		lastTile = null;
+	}
+
+	private static long tileKey(int tx, int ty)
+	{
+		return ((long) tx << 32) | (ty & 0xffffffffL);
+	}
+
+	private Tile getTile(long key)
+	{
+		Tile tile = tiles.get(key);
+		if (tile != null)
+			return tile;
+
+		tile = pool.isEmpty() ? new Tile(channels) : pool.remove(pool.size() - 1);
+		tile.key = key;
+		tile.dirty = false;
+		load(tile);
+		tiles.put(key, tile);
+		return tile;
+	}
+
+	private File tileFile(long key)
+	{
+		return new File(directory, "tile_" + (int) (key >> 32) + "_" + (int) key + ".bin");
+	}
+
+	private void load(Tile tile)
+	{
+		File file = tileFile(tile.key);
+		if (!file.exists())
+		{
+			tile.clear();
+			return;
+		}
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				read(raf.getChannel(), ioBuffer);
+				tile.clear();
+				int n = ioBuffer.getInt();
+				for (int k = 0; k < n; k++)
+				{
+					int i = ioBuffer.getInt();
+					tile.count[i] = ioBuffer.getInt();
+					tile.mean[i] = ioBuffer.getFloat();
+					tile.m2[i] = ioBuffer.getDouble();
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		catch (Exception e)
+		{
+			error = e instanceof IOException ? (IOException) e : new IOException(e.toString());
+			tile.clear();
+		}
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+			;
+		buffer.flip();
+	}
+
+	private void flush(Tile tile)
+	{
+		if (!tile.dirty)
+			return;
+		try
+		{
+			// Written aside and renamed, so that readers never see partial tile
+			File file = tileFile(tile.key);
+			File temp = new File(directory, file.getName() + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try
+			{
+				// Survey track covers few cells of a tile, so only non-empty ones are stored
+				ioBuffer.clear();
+				ioBuffer.putInt(0);
+				int n = 0;
+				for (int i = 0; i < tile.count.length; i++)
+				{
+					if (tile.count[i] == 0)
+						continue;
+					ioBuffer.putInt(i);
+					ioBuffer.putInt(tile.count[i]);
+					ioBuffer.putFloat(tile.mean[i]);
+					ioBuffer.putDouble(tile.m2[i]);
+					n++;
+				}
+				ioBuffer.putInt(0, n);
+				ioBuffer.flip();
+				FileChannel channel = raf.getChannel();
+				while (ioBuffer.hasRemaining())
+					channel.write(ioBuffer);
+				channel.truncate(channel.position());
+			}
+			finally
+			{
+				raf.close();
+			}
+			if (!temp.renameTo(file))
+				throw new IOException("Can not replace tile file: " + file);
+			tile.dirty = false;
+		}
+		catch (IOException e)
+		{
+			error = e;
+		}
+	}
+
+	/**
+	 * Removes all collected data.
+	 */
+	public void clear()
+	{
+		pool.addAll(tiles.values());
+		tiles.clear();
+		lastTile = null;
+		String[] files = directory.list();
+		if (files == null)
+			return;
+		for (String name : files)
+		{
+			if (name.startsWith("tile_"))
+				new File(directory, name).delete();
+		}
+	}
+}
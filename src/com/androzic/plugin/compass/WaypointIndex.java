@@ -0,0 +1,263 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Static k-d tree of waypoints placed on unit sphere. Straight line (chord)
+ * distance between unit vectors grows monotonically with great circle distance
+ * so nearest neighbours in 3D are nearest on Earth too, with no special care
+ * for poles and date line.
+ */
+public class WaypointIndex
+{
+	public static final double EARTH_RADIUS = 6371009;
+
+	private final int size;
+	// Tree nodes in implicit layout: median of [lo, hi) is the node at (lo + hi) / 2
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+	private final int[] ids;
+
+	private int[] heapIds = new int[0];
+	private double[] heapDistances = new double[0];
+	private int heapSize;
+	private int heapCapacity;
+
+	public WaypointIndex(double[] latitudes, double[] longitudes)
+	{
+		size = latitudes.length;
+		x = new double[size];
+		y = new double[size];
+		z = new double[size];
+		ids = new int[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			double lat = Math.toRadians(latitudes[i]);
+			double lon = Math.toRadians(longitudes[i]);
+			double cosLat = Math.cos(lat);
+			x[i] = cosLat * Math.cos(lon);
+			y[i] = cosLat * Math.sin(lon);
+			z[i] = Math.sin(lat);
+			ids[i] = i;
+		}
+		build(0, size, 0);
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Finds up to n waypoints nearest to given position.
+	 *
+	 * @param result receives waypoint indexes, nearest first
+	 * @param distances receives distances in meters
+	 * @return number of waypoints found
+	 */
+	public int nearest(double latitude, double longitude, int n, int[] result, double[] distances)
+	{
+		if (n > size)
+			n = size;
+		if (n <= 0)
+			return 0;
+
+		if (heapIds.length < n)
+		{
+			heapIds = new int[n];
+			heapDistances = new double[n];
+		}
+		heapSize = 0;
+		heapCapacity = n;
+
+		double lat = Math.toRadians(latitude);
+		double lon = Math.toRadians(longitude);
+		double cosLat = Math.cos(lat);
+		search(0, size, 0, cosLat * Math.cos(lon), cosLat * Math.sin(lon), Math.sin(lat));
+
+		// Unwind max-heap from the end to get ascending order
+		int count = heapSize;
+		for (int i = count - 1; i >= 0; i--)
+		{
+			result[i] = heapIds[0];
+			distances[i] = 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(heapDistances[0]) / 2));
+			heapSize--;
+			heapIds[0] = heapIds[heapSize];
+			heapDistances[0] = heapDistances[heapSize];
+			siftDown(0);
+		}
+		return count;
+	}
+
+	private void search(int lo, int hi, int axis, double qx, double qy, double qz)
+	{
+		if (lo >= hi)
+			return;
+
+		int mid = (lo + hi) >>> 1;
+		double dx = x[mid] - qx;
+		double dy = y[mid] - qy;
+		double dz = z[mid] - qz;
+		offer(ids[mid], dx * dx + dy * dy + dz * dz);
+
+		double delta = axis == 0 ? -dx : axis == 1 ? -dy : -dz;
+		int next = axis == 2 ? 0 : axis + 1;
+		if (delta < 0)
+		{
+			search(lo, mid, next, qx, qy, qz);
+			if (heapSize < heapCapacity || delta * delta < heapDistances[0])
+				search(mid + 1, hi, next, qx, qy, qz);
+		}
+		else
+		{
+			search(mid + 1, hi, next, qx, qy, qz);
+			if (heapSize < heapCapacity || delta * delta < heapDistances[0])
+				search(lo, mid, next, qx, qy, qz);
+		}
+	}
+
+	private void offer(int id, double distance)
+	{
+		if (heapSize < heapCapacity)
+		{
+			int i = heapSize++;
+			heapIds[i] = id;
+			heapDistances[i] = distance;
+			// sift up
+			while (i > 0)
+			{
+				int parent = (i - 1) >> 1;
+				if (heapDistances[parent] >= heapDistances[i])
+					break;
+				swapHeap(i, parent);
+				i = parent;
+			}
+		}
+		else if (distance < heapDistances[0])
+		{
+			heapIds[0] = id;
+			heapDistances[0] = distance;
+			siftDown(0);
+		}
+	}
+
+	private void siftDown(int i)
+	{
+		while (true)
+		{
+			int left = 2 * i + 1;
+			if (left >= heapSize)
+				break;
+			int largest = left;
+			if (left + 1 < heapSize && heapDistances[left + 1] > heapDistances[left])
+				largest = left + 1;
+			if (heapDistances[i] >= heapDistances[largest])
+				break;
+			swapHeap(i, largest);
+			i = largest;
+		}
+	}
+
+	private void swapHeap(int i, int j)
+	{
+		int id = heapIds[i];
+		heapIds[i] = heapIds[j];
+		heapIds[j] = id;
+		double d = heapDistances[i];
+		heapDistances[i] = heapDistances[j];
+		heapDistances[j] = d;
+	}
+
+	private void build(int lo, int hi, int axis)
+	{
+		if (hi - lo <= 1)
+			return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, axis);
+		int next = axis == 2 ? 0 : axis + 1;
+		build(lo, mid, next);
+		build(mid + 1, hi, next);
+	}
+
+	/**
+	 * Quickselect: places k-th point along axis at position k.
+	 */
+	private void select(int lo, int hi, int k, int axis)
+	{
+		double[] c = axis == 0 ? x : axis == 1 ? y : z;
+		while (lo < hi)
+		{
+			double pivot = c[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j)
+			{
+				while (c[i] < pivot)
+					i++;
+				while (c[j] > pivot)
+					j--;
+				if (i <= j)
+				{
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int i, int j)
+	{
+		double t = x[i];
+		x[i] = x[j];
+		x[j] = t;
+		t = y[i];
+		y[i] = y[j];
+		y[j] = t;
+		t = z[i];
+		z[i] = z[j];
+		z[j] = t;
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+	}
+
+	/**
+	 * Initial great circle bearing from first point to second, in degrees.
+	 */
+	public static double bearing(double lat1, double lon1, double lat2, double lon2)
+	{
+		double phi1 = Math.toRadians(lat1);
+		double phi2 = Math.toRadians(lat2);
+		double dLambda = Math.toRadians(lon2 - lon1);
+		double cosPhi2 = Math.cos(phi2);
+		double b = Math.toDegrees(Math.atan2(Math.sin(dLambda) * cosPhi2, Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * cosPhi2 * Math.cos(dLambda)));
+		return b < 0 ? b + 360 : b;
+	}
+}
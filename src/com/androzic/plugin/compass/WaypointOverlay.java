@@ -0,0 +1,144 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.plugin.compass;
+
+/**
+ * Bearing markers of nearest waypoints. Nearest set and bearings are
+ * recomputed only when position moves noticeably, drawing uses precomputed
+ * values and labels. Bearings are kept magnetic, as the dial shows magnetic
+ * heading.
+ */
+public class WaypointOverlay
+{
+	/** Upper bound of markers, frame budgets account for this many */
+	public static final int MAX_WAYPOINTS = 10;
+	private static final float MIN_MOVE = 5f;
+
+	private String[] names;
+	private double[] latitudes;
+	private double[] longitudes;
+	private WaypointIndex index;
+
+	private double latitude = Double.NaN;
+	private double longitude = Double.NaN;
+	private float declination;
+
+	private final int[] nearest = new int[MAX_WAYPOINTS];
+	private final double[] distances = new double[MAX_WAYPOINTS];
+	private final float[] bearings = new float[MAX_WAYPOINTS];
+	private final String[] labels = new String[MAX_WAYPOINTS];
+	private int maxCount = 5;
+	private int count;
+
+	/**
+	 * Sets number of nearest waypoints shown, zero hides markers.
+	 */
+	public synchronized void setMaxCount(int maxCount)
+	{
+		maxCount = Math.max(0, Math.min(MAX_WAYPOINTS, maxCount));
+		if (maxCount == this.maxCount)
+			return;
+		this.maxCount = maxCount;
+		update();
+	}
+
+	public synchronized void setWaypoints(String[] names, double[] latitudes, double[] longitudes)
+	{
+		if (latitudes == null || longitudes == null || latitudes.length != longitudes.length)
+		{
+			this.names = null;
+			index = null;
+			count = 0;
+			return;
+		}
+		this.names = names;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		index = new WaypointIndex(latitudes, longitudes);
+		update();
+	}
+
+	/**
+	 * @param declination magnetic declination at position, east positive
+	 */
+	public synchronized void setPosition(double latitude, double longitude, float declination)
+	{
+		if (!Double.isNaN(this.latitude))
+		{
+			// Cheap equirectangular estimate is enough to skip jitter
+			double dy = Math.toRadians(latitude - this.latitude);
+			double dx = Math.toRadians(longitude - this.longitude) * Math.cos(Math.toRadians(latitude));
+			if (Math.sqrt(dx * dx + dy * dy) * WaypointIndex.EARTH_RADIUS < MIN_MOVE)
+				return;
+		}
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.declination = declination;
+		update();
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	private void update()
+	{
+		if (index == null || Double.isNaN(latitude) || maxCount == 0)
+		{
+			count = 0;
+			return;
+		}
+		count = index.nearest(latitude, longitude, maxCount, nearest, distances);
+		for (int i = 0; i < count; i++)
+		{
+			int w = nearest[i];
+			bearings[i] = (float) WaypointIndex.bearing(latitude, longitude, latitudes[w], longitudes[w]) - declination;
+			String name = names != null && w < names.length ? names[w] : null;
+			String distance = formatDistance(distances[i]);
+			labels[i] = name != null ? name + " " + distance : distance;
+		}
+	}
+
+	private static String formatDistance(double meters)
+	{
+		if (meters < 1000)
+			return Math.round(meters) + " m";
+		if (meters < 10000)
+			return Math.round(meters / 100) / 10. + " km";
+		return Math.round(meters / 1000) + " km";
+	}
+
+	/**
+	 * Draws markers on dial rim. Surface should be centered and rotated so
+	 * that north points up.
+	 */
+	public synchronized void draw(DrawSurface surface, float radius, float scale)
+	{
+		for (int i = count - 1; i >= 0; i--)
+		{
+			surface.rotate(bearings[i]);
+			surface.drawCircle(0, -radius, 8 * scale, DrawSurface.PAINT_MARKER);
+			surface.drawText(labels[i], 0, -radius - 14 * scale, DrawSurface.PAINT_MARKER_LABEL);
+			surface.rotate(-bearings[i]);
+		}
+	}
+}
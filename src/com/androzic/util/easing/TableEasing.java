@@ -0,0 +1,56 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2013 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.util.easing;
+
+/**
+ * Easing backed by table of normalized curve sampled at equal steps with
+ * linear interpolation between samples. Interpolation error does not exceed
+ * h^2/8 * max|f''| of the change, where h = 1/size. For quintic in-out
+ * max|f''| is 5.77, with 256 steps error is below 1.1e-5 of the change,
+ * that is 0.002 degree for half-turn of the needle.
+ */
+public class TableEasing implements Easing
+{
+	private final int size;
+	private final float[] table;
+
+	public TableEasing(Easing easing, int size)
+	{
+		this.size = size;
+		table = new float[size + 1];
+		for (int i = 0; i <= size; i++)
+			table[i] = easing.ease(i, 0, 1, size);
+	}
+
+	@Override
+	public float ease(float time, float start, float change, float duration)
+	{
+		float x = time / duration * size;
+		if (x <= 0)
+			return start + change * table[0];
+		if (x >= size)
+			return start + change * table[size];
+		int i = (int) x;
+		float f = x - i;
+		float v = table[i];
+		return start + change * (v + f * (table[i + 1] - v));
+	}
+}